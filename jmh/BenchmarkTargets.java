@@ -0,0 +1,63 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import benchmarks.Targets;
+
+/**
+ * The bloom filters and the phases of BloomJoin, for the JMH benchmarks of the
+ * benchmarks package (see Targets).
+ *
+ * @author Yan Deng
+ *
+ */
+public class BenchmarkTargets implements Targets {
+
+	/**
+	 * A BloomFilter seen as a Targets.Filter.
+	 */
+	private static class Adapter implements Filter {
+		private final BloomFilter bf;
+
+		Adapter(BloomFilter bf) {
+			this.bf = bf;
+		}
+
+		public void add(String s) {
+			bf.add(s);
+		}
+
+		public boolean appears(String s) {
+			return bf.appears(s);
+		}
+
+		public long[] computeHashValues(String s) {
+			return bf.computeHashValues(s);
+		}
+	}
+
+	public Filter newFilter(String type, int setSize, int bitsPerElement) {
+		return new Adapter(BloomJoin.newFilter(type, BloomFilterSizing.forBitsPerElement(setSize, bitsPerElement)));
+	}
+
+	public String[] randomKeys(int n, int keyLength, long seed) {
+		return Benchmarks.randomKeys(n, keyLength, new Random(seed));
+	}
+
+	public void writeRelation(File relation, int lines, long seed) throws IOException {
+		Benchmarks.writeRelation(relation, lines, new Random(seed));
+	}
+
+	public int buildFilter(File r1, Filter filter) throws IOException {
+		return BloomJoin.addRange(r1, 0, r1.length(), ((Adapter) filter).bf);
+	}
+
+	public int buildR3(Filter filter, File r2, OutputStream out) throws IOException {
+		return BloomJoin.filterR2(((Adapter) filter).bf, r2, out)[1];
+	}
+
+	public long join(File r1, File r3, OutputStream out) throws IOException {
+		return new GraceHashJoin(Long.MAX_VALUE, null).join(r1, r3, out);
+	}
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of add(), appears() and computeHashValues() of the
+ * deterministic and random bloom filters, for every combination of the set
+ * size, the bits per element and the key length. Each invocation handles one
+ * key, so the scores are in ns per key.
+ *
+ * @author Yan Deng
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+	@Param({ "det", "ran" })
+	public String type;
+
+	@Param({ "100000", "1000000" })
+	public int setSize;
+
+	@Param({ "8", "10", "16" })
+	public int bitsPerElement;
+
+	@Param({ "8", "32" })
+	public int keyLength;
+
+	private Targets targets;
+	private String[] keys; // setSize keys which are added, then setSize keys which are not
+	private Targets.Filter filled; // holds the first setSize keys, for appears()
+	private Targets.Filter empty; // the filter add() adds to
+	private int next; // the key of the next invocation
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		targets = Targets.load();
+		keys = targets.randomKeys(2 * setSize, keyLength, 1);
+		filled = targets.newFilter(type, setSize, bitsPerElement);
+		for (int i = 0; i < setSize; i++) {
+			filled.add(keys[i]);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void clear() {
+		// a new filter each iteration, so that add() does not overfill it
+		empty = targets.newFilter(type, setSize, bitsPerElement);
+		next = 0;
+	}
+
+	private String nextKey() {
+		String key = keys[next];
+		next = next + 1 == keys.length ? 0 : next + 1;
+		return key;
+	}
+
+	@Benchmark
+	public Targets.Filter add() {
+		empty.add(nextKey());
+		return empty;
+	}
+
+	@Benchmark
+	public boolean appears() {
+		// half of the keys were added, half were not
+		return filled.appears(nextKey());
+	}
+
+	@Benchmark
+	public long[] computeHashValues() {
+		return filled.computeHashValues(nextKey());
+	}
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the phases of the bloom join with the code of BloomJoin:
+ * building the filter of R1, building R3 from R2 and the filter, and the
+ * in-memory hash join of R1 and R3. R1 and R2 have the same number of random
+ * lines, and a fifth of the R2 keys are in R1.
+ *
+ * @author Yan Deng
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JoinBenchmark {
+
+	@Param({ "det", "ran" })
+	public String type;
+
+	@Param({ "200000", "1000000" })
+	public int lines;
+
+	@Param({ "8", "10", "16" })
+	public int bitsPerElement;
+
+	private Targets targets;
+	private File r1;
+	private File r2;
+	private File r3;
+	private Targets.Filter filter; // the filter of R1, for buildR3
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		targets = Targets.load();
+		r1 = File.createTempFile("r1-", ".txt");
+		r2 = File.createTempFile("r2-", ".txt");
+		r3 = File.createTempFile("r3-", ".txt");
+		targets.writeRelation(r1, lines, 42);
+		targets.writeRelation(r2, lines, 43);
+		filter = buildFilter();
+		try (OutputStream out = new FileOutputStream(r3)) {
+			targets.buildR3(filter, r2, out);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		r1.delete();
+		r2.delete();
+		r3.delete();
+	}
+
+	@Benchmark
+	public Targets.Filter buildFilter() throws IOException {
+		Targets.Filter bf = targets.newFilter(type, lines, bitsPerElement);
+		targets.buildFilter(r1, bf);
+		return bf;
+	}
+
+	@Benchmark
+	public int buildR3() throws IOException {
+		return targets.buildR3(filter, r2, OutputStream.nullOutputStream());
+	}
+
+	@Benchmark
+	public long join() throws IOException {
+		return targets.join(r1, r3, OutputStream.nullOutputStream());
+	}
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The code of the bloom join which the JMH benchmarks measure. JMH does not
+ * accept benchmarks in the default package, and a class in a named package
+ * can not use the classes of the default package, so the benchmarks reach
+ * them through this interface, implemented by BenchmarkTargets in the
+ * default package. The calls are monomorphic, so the JIT inlines them.
+ *
+ * @author Yan Deng
+ *
+ */
+public interface Targets {
+
+	/**
+	 * A bloom filter, as the benchmarks see it.
+	 */
+	interface Filter {
+		void add(String s);
+
+		boolean appears(String s);
+
+		long[] computeHashValues(String s);
+	}
+
+	/**
+	 * @param type
+	 *            a filter type of BloomJoin, e.g. "det" or "ran"
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @return a new empty filter
+	 */
+	Filter newFilter(String type, int setSize, int bitsPerElement);
+
+	/**
+	 * @return n random keys of keyLength characters.
+	 */
+	String[] randomKeys(int n, int keyLength, long seed);
+
+	/**
+	 * Write a random relation of given number of lines, as the other
+	 * benchmarks do.
+	 */
+	void writeRelation(File relation, int lines, long seed) throws IOException;
+
+	/**
+	 * The buildFilter phase: add the keys of R1 to a filter.
+	 *
+	 * @return the number of lines of R1
+	 */
+	int buildFilter(File r1, Filter filter) throws IOException;
+
+	/**
+	 * The buildR3 phase: write the rows of R2 whose key appears in the filter.
+	 *
+	 * @return the number of lines of R3
+	 */
+	int buildR3(Filter filter, File r2, OutputStream out) throws IOException;
+
+	/**
+	 * The join phase: the in-memory hash join of R1 and R3.
+	 *
+	 * @return the number of lines of the result
+	 */
+	long join(File r1, File r3, OutputStream out) throws IOException;
+
+	/**
+	 * @return the BenchmarkTargets of the default package.
+	 */
+	static Targets load() {
+		try {
+			return (Targets) Class.forName("BenchmarkTargets").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException("BenchmarkTargets is not on the class path.", ex);
+		}
+	}
+}
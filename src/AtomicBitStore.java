@@ -0,0 +1,90 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe bit storage in an AtomicLongArray. set() uses compare-and-set,
+ * so many threads can set and get bits at the same time without locks.
+ *
+ * @author Yan Deng
+ *
+ */
+public class AtomicBitStore implements BitStore {
+	private final long numBits;
+	private final AtomicLongArray words;
+
+	/**
+	 * Create a thread-safe bit storage with given number of bits, all cleared.
+	 *
+	 * @param numBits
+	 */
+	public AtomicBitStore(long numBits) {
+		long numWords = (numBits + 63) >>> 6;
+		if (numBits <= 0 || numWords > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("An atomic bit storage can not hold " + numBits + " bits.");
+		}
+		this.numBits = numBits;
+		this.words = new AtomicLongArray((int) numWords);
+	}
+
+	public long size() {
+		return numBits;
+	}
+
+	public void set(long index) {
+		int i = (int) (index >>> 6);
+		long mask = 1L << index;
+		long word = words.get(i);
+		while ((word & mask) == 0 && !words.compareAndSet(i, word, word | mask)) {
+			word = words.get(i);
+		}
+	}
+
+	public boolean get(long index) {
+		return (words.get((int) (index >>> 6)) & (1L << index)) != 0;
+	}
+
+	public long numWords() {
+		return words.length();
+	}
+
+	public long getWord(long wordIndex) {
+		return words.get((int) wordIndex);
+	}
+
+	public void setWord(long wordIndex, long word) {
+		words.set((int) wordIndex, word);
+	}
+
+	/**
+	 * Word-wise OR with compare-and-set, it is safe while other threads add.
+	 */
+	@Override
+	public void or(BitStore other) {
+		if (other.size() != numBits) {
+			throw new IllegalArgumentException("Can not merge bit storages of different sizes.");
+		}
+		for (int i = 0; i < words.length(); i++) {
+			long mask = other.getWord(i);
+			long word = words.get(i);
+			while ((word | mask) != word && !words.compareAndSet(i, word, word | mask)) {
+				word = words.get(i);
+			}
+		}
+	}
+
+	public long cardinality() {
+		long count = 0;
+		for (int i = 0; i < words.length(); i++) {
+			count += Long.bitCount(words.get(i));
+		}
+		return count;
+	}
+
+	public void clear() {
+		for (int i = 0; i < words.length(); i++) {
+			words.set(i, 0L);
+		}
+	}
+
+	public void close() {
+	}
+}
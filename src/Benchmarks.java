@@ -0,0 +1,529 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * Micro benchmarks for the bloom filters and the bloom join.
+ * Each benchmark runs a few warm up rounds before the measured rounds, and
+ * prints the average time of the measured rounds.
+ *
+ * @author Yan Deng
+ *
+ */
+public class Benchmarks {
+	private static final int WARMUP = 3; // number of warm up rounds
+	private static final int ROUNDS = 5; // number of measured rounds
+
+	private static final BigInteger FNV64INIT = new BigInteger("cbf29ce484222325", 16);
+	private static final BigInteger FNV64PRIME = new BigInteger("100000001b3", 16);
+	private static final BigInteger DOMINATOR64 = new BigInteger("2").pow(64);
+	private static final BigInteger FNV32INIT = new BigInteger("811c9dc5", 16);
+	private static final BigInteger FNV32PRIME = new BigInteger("01000193", 16);
+	private static final BigInteger DOMINATOR32 = new BigInteger("2").pow(32);
+
+	/**
+	 * Run the benchmarks. An optional argument is the name of a (multi-GB)
+	 * relation file to read; by default a relation of 2000000 lines is
+	 * generated in a temp file.
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		hashing(100000, 10, 10);
+		batchAppears(4000000, 10, 10);
+		concurrentAdd(1000000, 10, 10, Runtime.getRuntime().availableProcessors());
+		File relation;
+		if (args.length > 0) {
+			relation = new File(args[0]);
+		} else {
+			relation = File.createTempFile("relation", ".txt");
+			relation.deleteOnExit();
+			writeRelation(relation, 2000000, new Random(42));
+		}
+		readRelation(relation);
+		joinTable(relation);
+		joinMethods(1000000);
+	}
+
+	/**
+	 * Compare the primitive FNV hashing of BloomFilterDet with the former
+	 * BigInteger implementation. Both of them build a filter from the same
+	 * keys, and the two filters must be bit-for-bit identical.
+	 *
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param lengthOfString
+	 */
+	public static void hashing(int setSize, int bitsPerElement, int lengthOfString) {
+		String[] keys = randomKeys(setSize, lengthOfString, new Random(42));
+		BloomFilterDet bf = new BloomFilterDet(setSize, bitsPerElement);
+		int k = bf.numHashes();
+		int m = (int) bf.filterSize();
+
+		BitSet legacy = new BitSet(m);
+		long legacyTime = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			legacy.clear();
+			long start = System.nanoTime();
+			for (String key : keys) {
+				for (long h : legacyHashValues(key, k, m)) {
+					legacy.set((int) h);
+				}
+			}
+			if (r >= WARMUP)
+				legacyTime += System.nanoTime() - start;
+		}
+
+		long primitiveTime = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			bf.bitStore.clear();
+			long start = System.nanoTime();
+			for (String key : keys) {
+				bf.add(key);
+			}
+			if (r >= WARMUP)
+				primitiveTime += System.nanoTime() - start;
+		}
+
+		System.out.println();
+		System.out.println("Hashing " + setSize + " keys of length " + lengthOfString + " with k=" + k + ":");
+		System.out.printf("BigInteger FNV: %.2f ms; primitive FNV: %.2f ms.%n", legacyTime / 1e6 / ROUNDS,
+				primitiveTime / 1e6 / ROUNDS);
+		System.out.println("The two filters are " + (sameBits(legacy, bf.bitStore) ? "identical." : "DIFFERENT!"));
+	}
+
+	/**
+	 * Compare three ways to probe keys read as bytes from a relation file:
+	 * decoding each key to a String for appears(String), decoding them for
+	 * the batch appears(String[], int, long[]), and the batch of byte slices
+	 * appears(byte[], int[], int[], int, long[]) which creates no String. The
+	 * filter is larger than the processor caches, and half of the probed keys
+	 * were added.
+	 *
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param lengthOfString
+	 */
+	public static void batchAppears(int setSize, int bitsPerElement, int lengthOfString) {
+		String[] keys = randomKeys(2 * setSize, lengthOfString, new Random(42));
+		BloomFilterDet bf = new BloomFilterDet(setSize, bitsPerElement);
+		for (int i = 0; i < setSize; i++) {
+			bf.add(keys[2 * i]);
+		}
+		final int batch = 4096;
+		long[] perKey = new long[(keys.length + 63) >>> 6];
+		long[] batched = new long[perKey.length];
+		long[] result = new long[batch / 64];
+		byte[] bytes = new byte[keys.length * lengthOfString];
+		int[] offsets = new int[keys.length];
+		int[] lengths = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			offsets[i] = i * lengthOfString;
+			lengths[i] = lengthOfString;
+			System.arraycopy(keys[i].getBytes(StandardCharsets.US_ASCII), 0, bytes, offsets[i], lengthOfString);
+		}
+		long[] sliced = new long[perKey.length];
+		long perKeyTime = 0;
+		long batchTime = 0;
+		long bytesTime = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			Arrays.fill(perKey, 0L);
+			long start = System.nanoTime();
+			for (int i = 0; i < keys.length; i++) {
+				if (bf.appears(new String(bytes, offsets[i], lengths[i], StandardCharsets.UTF_8)))
+					perKey[i >>> 6] |= 1L << i;
+			}
+			long probed = System.nanoTime();
+			String[] block = new String[batch];
+			for (int from = 0; from < keys.length; from += batch) {
+				int n = Math.min(batch, keys.length - from);
+				for (int j = 0; j < n; j++) {
+					block[j] = new String(bytes, offsets[from + j], lengths[from + j], StandardCharsets.UTF_8);
+				}
+				bf.appears(block, n, result);
+				// batch is a multiple of 64, so the words of result are words of batched
+				System.arraycopy(result, 0, batched, from >>> 6, (n + 63) >>> 6);
+			}
+			long batchedEnd = System.nanoTime();
+			int[] blockOffsets = new int[batch];
+			int[] blockLengths = new int[batch];
+			for (int from = 0; from < keys.length; from += batch) {
+				int n = Math.min(batch, keys.length - from);
+				System.arraycopy(offsets, from, blockOffsets, 0, n);
+				System.arraycopy(lengths, from, blockLengths, 0, n);
+				bf.appears(bytes, blockOffsets, blockLengths, n, result);
+				System.arraycopy(result, 0, sliced, from >>> 6, (n + 63) >>> 6);
+			}
+			if (r >= WARMUP) {
+				perKeyTime += probed - start;
+				batchTime += batchedEnd - probed;
+				bytesTime += System.nanoTime() - batchedEnd;
+			}
+		}
+		System.out.println();
+		System.out.println("Probing " + keys.length + " keys in a filter of " + bf.filterSize() / 8 / 1024 + " KB:");
+		System.out.printf("decode+appears(String): %.2f M keys/s; decode+appears(String[]): %.2f M keys/s; appears(byte[]): %.2f M keys/s.%s%n",
+				(double) keys.length * ROUNDS / perKeyTime * 1e3, (double) keys.length * ROUNDS / batchTime * 1e3,
+				(double) keys.length * ROUNDS / bytesTime * 1e3,
+				Arrays.equals(perKey, batched) && Arrays.equals(perKey, sliced) ? "" : " The results DIFFER!");
+	}
+
+	/**
+	 * Measure the add and appears throughput of BloomFilterConcurrent with 1,
+	 * 2, 4... up to maxThreads threads. Each thread works on its own slice of
+	 * the keys.
+	 *
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param lengthOfString
+	 * @param maxThreads
+	 */
+	public static void concurrentAdd(int setSize, int bitsPerElement, int lengthOfString, int maxThreads) {
+		final String[] keys = randomKeys(setSize, lengthOfString, new Random(42));
+		System.out.println();
+		System.out.println("Concurrent bloom filter with " + setSize + " keys of length " + lengthOfString + ":");
+		for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads ? Math.min(threads * 2, maxThreads)
+				: threads + 1) {
+			long addTime = 0;
+			long probeTime = 0;
+			for (int r = 0; r < WARMUP + ROUNDS; r++) {
+				final BloomFilterConcurrent bf = new BloomFilterConcurrent(setSize, bitsPerElement);
+				long start = System.nanoTime();
+				runSlices(threads, keys.length, (from, to) -> {
+					for (int i = from; i < to; i++)
+						bf.add(keys[i]);
+				});
+				long added = System.nanoTime();
+				runSlices(threads, keys.length, (from, to) -> {
+					for (int i = from; i < to; i++)
+						if (!bf.appears(keys[i]))
+							throw new IllegalStateException(keys[i] + " was added but does not appear.");
+				});
+				if (r >= WARMUP) {
+					addTime += added - start;
+					probeTime += System.nanoTime() - added;
+				}
+			}
+			System.out.printf("%d thread(s): add %.2f M keys/s; appears %.2f M keys/s.%n", threads,
+					(double) setSize * ROUNDS / addTime * 1e3, (double) setSize * ROUNDS / probeTime * 1e3);
+		}
+	}
+
+	/**
+	 * Compare reading a relation file with Scanner and String.split (the
+	 * former BloomJoin code) and with RelationReader. Both read every key and
+	 * value.
+	 *
+	 * @param relation
+	 *            the relation file
+	 * @throws IOException
+	 */
+	public static void readRelation(File relation) throws IOException {
+		long scannerTime = 0;
+		long readerTime = 0;
+		long lines = 0;
+		long check = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			long start = System.nanoTime();
+			Scanner scanner = new Scanner(relation);
+			lines = 0;
+			while (scanner.hasNextLine()) {
+				String[] input = scanner.nextLine().split("\\s+");
+				check += input[0].length() + input[1].length();
+				lines++;
+			}
+			scanner.close();
+			long scanned = System.nanoTime();
+			RelationReader reader = new RelationReader(relation);
+			while (reader.next()) {
+				check -= reader.keyLength() + reader.valueLength();
+			}
+			reader.close();
+			if (r >= WARMUP) {
+				scannerTime += scanned - start;
+				readerTime += System.nanoTime() - scanned;
+			}
+		}
+		double mb = relation.length() / 1e6;
+		System.out.println();
+		System.out.printf("Reading a relation of %d lines (%.1f MB):%n", lines, mb);
+		System.out.printf("Scanner+split: %.1f MB/s; RelationReader: %.1f MB/s.%s%n", mb * ROUNDS / (scannerTime / 1e9),
+				mb * ROUNDS / (readerTime / 1e9), check == 0 ? "" : " The two readers DIFFER!");
+	}
+
+	/**
+	 * Compare the former HashMap&lt;String, ArrayList&gt; of the join with
+	 * JoinHashTable: build both from a relation, probe both with every key of
+	 * the relation, and measure the heap used by each of them.
+	 *
+	 * @param relation
+	 *            the relation file
+	 * @throws IOException
+	 */
+	public static void joinTable(File relation) throws IOException {
+		long mapBuild = 0, mapProbe = 0, tableBuild = 0, tableProbe = 0;
+		long mapMemory = 0, tableMemory = 0;
+		long rows = 0, check = 0;
+		for (int r = 0; r < WARMUP + ROUNDS; r++) {
+			long before = usedMemory();
+			long start = System.nanoTime();
+			HashMap<String, ArrayList<String>> map = new HashMap<String, ArrayList<String>>();
+			RelationReader reader = new RelationReader(relation);
+			while (reader.next()) {
+				String key = reader.keyString();
+				ArrayList<String> values = map.get(key);
+				if (values == null) {
+					values = new ArrayList<String>(1);
+					map.put(key, values);
+				}
+				values.add(reader.valueString());
+			}
+			reader.close();
+			long built = System.nanoTime();
+			mapMemory = usedMemory() - before;
+			long probeStart = System.nanoTime();
+			reader = new RelationReader(relation);
+			rows = 0;
+			while (reader.next()) {
+				for (String value : map.get(reader.keyString())) {
+					check += value.length();
+					rows++;
+				}
+			}
+			reader.close();
+			long probed = System.nanoTime();
+			if (r >= WARMUP) {
+				mapBuild += built - start;
+				mapProbe += probed - probeStart;
+			}
+			map = null;
+
+			before = usedMemory();
+			start = System.nanoTime();
+			JoinHashTable table = new JoinHashTable();
+			reader = new RelationReader(relation);
+			while (reader.next()) {
+				table.put(reader.buffer(), reader.keyOffset(), reader.keyLength(), reader.valueOffset(),
+						reader.valueLength());
+			}
+			reader.close();
+			built = System.nanoTime();
+			tableMemory = usedMemory() - before;
+			probeStart = System.nanoTime();
+			reader = new RelationReader(relation);
+			while (reader.next()) {
+				for (int row = table.find(reader.buffer(), reader.keyOffset(), reader.keyLength()); row >= 0; row = table
+						.nextRow(row)) {
+					check -= table.valueLength(row);
+				}
+			}
+			reader.close();
+			probed = System.nanoTime();
+			if (r >= WARMUP) {
+				tableBuild += built - start;
+				tableProbe += probed - probeStart;
+			}
+		}
+		System.out.println();
+		System.out.printf("Join hash table of a relation of %.1f MB (%d rows joined per probe):%n",
+				relation.length() / 1e6, rows);
+		System.out.printf("HashMap: build %.0f ms, probe %.0f ms, %.1f MB.%n", mapBuild / 1e6 / ROUNDS,
+				mapProbe / 1e6 / ROUNDS, mapMemory / 1e6);
+		System.out.printf("JoinHashTable: build %.0f ms, probe %.0f ms, %.1f MB.%s%n", tableBuild / 1e6 / ROUNDS,
+				tableProbe / 1e6 / ROUNDS, tableMemory / 1e6, check == 0 ? "" : " The two tables DIFFER!");
+	}
+
+	/**
+	 * Compare the hash join (GraceHashJoin, in memory) with the sort-merge
+	 * join (SortMergeJoin) on two random relations, first unsorted, then
+	 * sorted by key, where the sort-merge join only merges.
+	 *
+	 * @param lines
+	 *            number of lines of each relation
+	 * @throws IOException
+	 */
+	public static void joinMethods(int lines) throws IOException {
+		File r1 = File.createTempFile("r1-", ".txt");
+		File r3 = File.createTempFile("r3-", ".txt");
+		r1.deleteOnExit();
+		r3.deleteOnExit();
+		Random rand = new Random(42);
+		writeRelation(r1, lines, rand);
+		writeRelation(r3, lines, rand);
+		long budget = Runtime.getRuntime().maxMemory() / 4;
+		File sorted1 = new SortMergeJoin(budget, null).sort(r1);
+		File sorted3 = new SortMergeJoin(budget, null).sort(r3);
+		sorted1.deleteOnExit();
+		sorted3.deleteOnExit();
+		OutputStream discard = new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		};
+		System.out.println();
+		System.out.println("Join of two relations of " + lines + " lines:");
+		for (int sorted = 0; sorted < 2; sorted++) {
+			File in1 = sorted == 0 ? r1 : sorted1;
+			File in3 = sorted == 0 ? r3 : sorted3;
+			long hashTime = 0;
+			long mergeTime = 0;
+			long hashRows = 0;
+			long mergeRows = 0;
+			for (int r = 0; r < WARMUP + ROUNDS; r++) {
+				long start = System.nanoTime();
+				hashRows = new GraceHashJoin(Long.MAX_VALUE, null).join(in1, in3, discard);
+				long hashed = System.nanoTime();
+				mergeRows = new SortMergeJoin(budget, null).join(in1, in3, discard);
+				if (r >= WARMUP) {
+					hashTime += hashed - start;
+					mergeTime += System.nanoTime() - hashed;
+				}
+			}
+			System.out.printf("%s input: hash join %.0f ms, sort-merge join %.0f ms.%s%n",
+					sorted == 0 ? "Unsorted" : "Sorted", hashTime / 1e6 / ROUNDS, mergeTime / 1e6 / ROUNDS,
+					hashRows == mergeRows ? "" : " The two joins DIFFER!");
+		}
+	}
+
+	/**
+	 * @return the heap used after a garbage collection, in bytes.
+	 */
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Write a random relation file, each line is "key value".
+	 *
+	 * @param relation
+	 * @param lines
+	 * @param rand
+	 * @throws IOException
+	 */
+	static void writeRelation(File relation, int lines, Random rand) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(relation));
+		for (int i = 0; i < lines; i++) {
+			writer.write("k" + rand.nextInt(lines * 5) + " v" + i + "\n");
+		}
+		writer.close();
+	}
+
+	/**
+	 * A task working on the slice [from, to) of an array.
+	 */
+	interface SliceTask {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Split [0, n) into given number of slices and run the task on each slice
+	 * in its own thread, then wait for all of them.
+	 *
+	 * @param threads
+	 * @param n
+	 * @param task
+	 */
+	static void runSlices(int threads, int n, SliceTask task) {
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int from = (int) ((long) n * t / threads);
+			final int to = (int) ((long) n * (t + 1) / threads);
+			workers[t] = new Thread(() -> task.run(from, to));
+			workers[t].start();
+		}
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Check if a BitSet and a BitStore have the same bits.
+	 *
+	 * @param bitSet
+	 * @param bitStore
+	 * @return true if all the bits are the same
+	 */
+	static boolean sameBits(BitSet bitSet, BitStore bitStore) {
+		if (bitSet.length() > bitStore.size())
+			return false;
+		for (long i = 0; i < bitStore.size(); i++) {
+			if (bitSet.get((int) i) != bitStore.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The former BigInteger implementation of BloomFilterDet.computeHashValues,
+	 * kept as the reference of the primitive implementation.
+	 *
+	 * @param s
+	 *            given string (already in lower case)
+	 * @param k
+	 *            the number of hash values
+	 * @param bitSetSize
+	 *            the size of the filter
+	 * @return an array stored the K hash values
+	 */
+	static long[] legacyHashValues(String s, int k, long bitSetSize) {
+		long[] hs = new long[k];
+		for (int i = 0; i < k; i++) {
+			BigInteger h = legacyHashValue(s, 64).add(legacyHashValue(s, 32).multiply(BigInteger.valueOf(i)))
+					.mod(BigInteger.valueOf(bitSetSize));
+			hs[i] = h.longValue();
+		}
+		return hs;
+	}
+
+	private static BigInteger legacyHashValue(String s, int fnv) {
+		BigInteger h = fnv == 32 ? FNV32INIT : FNV64INIT;
+		BigInteger prime = fnv == 32 ? FNV32PRIME : FNV64PRIME;
+		BigInteger dominator = fnv == 32 ? DOMINATOR32 : DOMINATOR64;
+		for (int i = 0; i < s.length(); i++) {
+			h = h.xor(BigInteger.valueOf(s.charAt(i)));
+			h = h.multiply(prime).mod(dominator);
+		}
+		return h;
+	}
+
+	/**
+	 * Generate random lower case keys with given length.
+	 *
+	 * @param n
+	 *            number of keys
+	 * @param lengthOfString
+	 * @param rand
+	 * @return an array of random keys
+	 */
+	static String[] randomKeys(int n, int lengthOfString, Random rand) {
+		String[] keys = new String[n];
+		char[] chars = new char[lengthOfString];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < lengthOfString; j++) {
+				chars[j] = (char) ('a' + rand.nextInt(26));
+			}
+			keys[i] = new String(chars);
+		}
+		return keys;
+	}
+}
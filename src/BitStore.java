@@ -0,0 +1,78 @@
+import java.io.Closeable;
+
+/**
+ * Storage of the bits of a bloom filter. Bits and words are addressed by long
+ * indices so that a filter can be larger than 2^31 bits. Bit i is stored in
+ * word i/64 at position i%64.
+ *
+ * @author Yan Deng
+ *
+ */
+public interface BitStore extends Closeable {
+	public long size();
+	public void set(long index);
+	public boolean get(long index);
+	public long numWords();
+	public long getWord(long wordIndex);
+	public void setWord(long wordIndex, long word);
+	public long cardinality();
+	public void clear();
+
+	/**
+	 * Read width bits starting at bit index as a number, e.g. a fingerprint
+	 * of a table of packed fingerprints. The bits may span two words.
+	 *
+	 * @param index
+	 *            the first bit
+	 * @param width
+	 *            the number of bits, in [1, 64]
+	 * @return the bits, bit index being the lowest
+	 */
+	public default long getBits(long index, int width) {
+		long word = index >>> 6;
+		int shift = (int) (index & 63);
+		long bits = getWord(word) >>> shift;
+		if (shift + width > 64)
+			bits |= getWord(word + 1) << (64 - shift);
+		return width == 64 ? bits : bits & ((1L << width) - 1);
+	}
+
+	/**
+	 * Write the lowest width bits of value starting at bit index, the
+	 * reverse of getBits().
+	 *
+	 * @param index
+	 *            the first bit
+	 * @param width
+	 *            the number of bits, in [1, 64]
+	 * @param value
+	 */
+	public default void setBits(long index, int width, long value) {
+		long mask = width == 64 ? -1L : (1L << width) - 1;
+		value &= mask;
+		long word = index >>> 6;
+		int shift = (int) (index & 63);
+		setWord(word, (getWord(word) & ~(mask << shift)) | (value << shift));
+		if (shift + width > 64) {
+			int low = 64 - shift; // bits written to the first word
+			setWord(word + 1, (getWord(word + 1) & ~(mask >>> low)) | (value >>> low));
+		}
+	}
+
+	/**
+	 * Set the bits which are set in another storage of the same size
+	 * (word-wise OR).
+	 *
+	 * @param other
+	 */
+	public default void or(BitStore other) {
+		if (other.size() != size()) {
+			throw new IllegalArgumentException("Can not merge bit storages of different sizes.");
+		}
+		for (long i = 0; i < numWords(); i++) {
+			long word = other.getWord(i);
+			if (word != 0)
+				setWord(i, getWord(i) | word);
+		}
+	}
+}
@@ -1,15 +1,131 @@
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 /**
- * Interface for BloomFilterDet and BloomFilterRan.
+ * Interface for BloomFilterDet, BloomFilterRan and the other bloom filters.
  * @author Yan Deng
  *
  */
 public interface BloomFilter {
 	public void add(String s);
 	public boolean appears(String s);
-	public int filterSize();
-	public int dataSize();
+	public long filterSize();
+	public long dataSize();
 	public int numHashes();
 	public BigInteger computeHashValue(String s, int fnv);
-	public int[] computeHashValues(String s);
+	public long[] computeHashValues(String s);
+
+	/**
+	 * Probe a batch of strings: bit i of result (bit i%64 of result[i/64]) is
+	 * set if keys[i] appears in the filter, cleared otherwise. Filters may
+	 * hash the whole batch first and then look up the bits of all the keys
+	 * together, which is faster than calling appears(String) per key.
+	 * 
+	 * @param keys
+	 *            the query strings
+	 * @param count
+	 *            the number of strings to probe, keys[0..count)
+	 * @param result
+	 *            the result bitmap, at least (count+63)/64 words
+	 */
+	public default void appears(String[] keys, int count, long[] result) {
+		Arrays.fill(result, 0, (count + 63) >>> 6, 0L);
+		for (int i = 0; i < count; i++) {
+			if (appears(keys[i]))
+				result[i >>> 6] |= 1L << i;
+		}
+	}
+
+	/**
+	 * Adds the string of the UTF-8 bytes buf[off, off+len), the same as
+	 * add(String). Filters may hash the bytes directly, without creating the
+	 * String and its lower case copy.
+	 * 
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public default void add(byte[] buf, int off, int len) {
+		add(new String(buf, off, len, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns true if the string of the UTF-8 bytes buf[off, off+len) appears
+	 * in the filter, the same as appears(String).
+	 * 
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the string appears in the filter false otherwise
+	 */
+	public default boolean appears(byte[] buf, int off, int len) {
+		return appears(new String(buf, off, len, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Probe a batch of strings given as slices of a byte array: bit i of
+	 * result is set if the string of buf[offsets[i], offsets[i]+lengths[i])
+	 * appears in the filter, see appears(String[], int, long[]).
+	 * 
+	 * @param buf
+	 * @param offsets
+	 * @param lengths
+	 * @param count
+	 * @param result
+	 */
+	public default void appears(byte[] buf, int[] offsets, int[] lengths, int count, long[] result) {
+		Arrays.fill(result, 0, (count + 63) >>> 6, 0L);
+		for (int i = 0; i < count; i++) {
+			if (appears(buf, offsets[i], lengths[i]))
+				result[i >>> 6] |= 1L << i;
+		}
+	}
+
+	/**
+	 * Merge another filter into this one (word-wise OR), e.g. the partial
+	 * filters built from different chunks of a relation. Both filters must
+	 * have the same type, size and hash functions.
+	 * 
+	 * @param other
+	 */
+	public void union(BloomFilter other);
+
+	/**
+	 * 
+	 * @return the number of bits of the table which are set (counters which
+	 *         are not 0 for a counting filter).
+	 */
+	public long bitsSet();
+
+	/**
+	 * 
+	 * @return the fraction of the table which is set.
+	 */
+	public default double fillRatio() {
+		return (double) bitsSet() / filterSize();
+	}
+
+	/**
+	 * The false positive rate estimated from the table itself: a key which
+	 * was not added appears if its k bits are set, each with probability
+	 * fillRatio().
+	 * 
+	 * @return fillRatio()^k
+	 */
+	public default double estimatedFpr() {
+		return Math.pow(fillRatio(), numHashes());
+	}
+
+	/**
+	 * The number of distinct keys added, estimated from the number of bits
+	 * set X (Swamidass and Baldi): -m/k * ln(1 - X/m). Unlike dataSize(), a
+	 * key added twice is counted once.
+	 * 
+	 * @return the estimated number of distinct keys, infinity if the table
+	 *         is full
+	 */
+	public default double estimatedCardinality() {
+		double m = filterSize();
+		return -m / numHashes() * Math.log(1 - bitsSet() / m);
+	}
 }
@@ -0,0 +1,156 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe Bloom Filter with deterministic hash function. It uses the same
+ * table size and FNV hash values as BloomFilterDet, but the bits are set with
+ * compare-and-set and the data size is a LongAdder, so many threads can add
+ * and query at the same time.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterConcurrent extends FnvBloomFilter {
+	private final int k; // the number of hash functions used
+	public final AtomicBitStore bitStore; // T[h(x)]=1 if x is in S
+	private final long bitSetSize;
+	private final LongAdder dataSize = new LongAdder(); // the number of elements added to the filter
+
+	/**
+	 * Initialize a thread-safe Bloom filter that can store a set S of
+	 * cardinality setSize. The size of the filter is the first prime number
+	 * bigger than setSize * bitsPerElement, the same as BloomFilterDet.
+	 *
+	 * @param setSize
+	 * @param bitsPerElement
+	 */
+	public BloomFilterConcurrent(long setSize, int bitsPerElement) {
+		System.out.println("Create a new BloomFilterConcurrent instance.");
+		this.k = BloomFilterSizing.optimalK(bitsPerElement, 1);
+		this.bitSetSize = BloomFilterDet.nextPrime(setSize * bitsPerElement);
+		this.bitStore = new AtomicBitStore(bitSetSize);
+	}
+
+	/**
+	 * Initialize a thread-safe Bloom filter on a given bit storage, e.g. one
+	 * sized by BloomFilterSizing.
+	 *
+	 * @param bitStore
+	 *            an empty bit storage
+	 * @param k
+	 *            the number of hash functions
+	 */
+	public BloomFilterConcurrent(AtomicBitStore bitStore, int k) {
+		System.out.println("Create a new BloomFilterConcurrent instance.");
+		this.k = k;
+		this.bitSetSize = bitStore.size();
+		this.bitStore = bitStore;
+	}
+
+	void addHash(long fnv64, int fnv32) {
+		long h = FnvHash.index(fnv64, bitSetSize);
+		long step = FnvHash.step(fnv32, bitSetSize);
+		for (int i = 0; i < k; i++) {
+			bitStore.set(h);
+			h = FnvHash.nextIndex(h, step, bitSetSize);
+		}
+		dataSize.increment();
+	}
+
+	boolean appearsHash(long fnv64, int fnv32) {
+		long h = FnvHash.index(fnv64, bitSetSize);
+		long step = FnvHash.step(fnv32, bitSetSize);
+		for (int i = 0; i < k; i++) {
+			if (!bitStore.get(h))
+				return false;
+			h = FnvHash.nextIndex(h, step, bitSetSize);
+		}
+		return true;
+	}
+
+	/**
+	 * Probe a batch of strings, hashing a block of keys first, the same as
+	 * BloomFilterDet.
+	 */
+	public void appears(String[] keys, int count, long[] result) {
+		BloomFilterDet.appears(bitStore, bitSetSize, k, keys, count, result);
+	}
+
+	/**
+	 * Probe a batch of strings given as slices of a byte array, the same as
+	 * BloomFilterDet.
+	 */
+	public void appears(byte[] buf, int[] offsets, int[] lengths, int count, long[] result) {
+		BloomFilterDet.appears(bitStore, bitSetSize, k, buf, offsets, lengths, count, result);
+	}
+
+	/**
+	 *
+	 * @return the size of the filter table.
+	 */
+	public long filterSize() {
+		return this.bitSetSize;
+	}
+
+	/**
+	 *
+	 * @return the number of elements added to the filter.
+	 */
+	public long dataSize() {
+		return dataSize.sum();
+	}
+
+	/**
+	 *
+	 * @return the number of hash function used.
+	 */
+	public int numHashes() {
+		return this.k;
+	}
+
+	/**
+	 * 
+	 * @return the number of bits of the table which are set.
+	 */
+	public long bitsSet() {
+		return bitStore.cardinality();
+	}
+
+	/**
+	 * Merge another deterministic filter (BloomFilterDet or
+	 * BloomFilterConcurrent) of the same size into this one. The data size
+	 * becomes the sum of the two data sizes. It is safe while other threads
+	 * add.
+	 * 
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		BitStore otherStore;
+		if (other instanceof BloomFilterDet) {
+			otherStore = ((BloomFilterDet) other).bitStore;
+		} else if (other instanceof BloomFilterConcurrent) {
+			otherStore = ((BloomFilterConcurrent) other).bitStore;
+		} else {
+			throw new IllegalArgumentException("Can not merge a " + other.getClass().getName() + " into a BloomFilterConcurrent.");
+		}
+		if (other.numHashes() != k) {
+			throw new IllegalArgumentException("Can not merge filters with different numbers of hash functions.");
+		}
+		bitStore.or(otherStore);
+		dataSize.add(other.dataSize());
+	}
+
+	/**
+	 * Compute K different hash values for given string, the same values as
+	 * BloomFilterDet.
+	 *
+	 * @param s
+	 *            given string
+	 * @return an array stored the K hash values
+	 */
+	public long[] computeHashValues(String s) {
+		long[] hs = new long[k];
+		FnvHash.indexes(s, bitSetSize, hs, k);
+		return hs;
+	}
+
+}
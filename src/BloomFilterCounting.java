@@ -0,0 +1,209 @@
+/**
+ * Counting Bloom Filter with deterministic hash function. Each position of the
+ * table is a 4-bit counter instead of a bit (16 counters packed in a long), so
+ * strings can be removed as well as added. It uses the same table size and FNV
+ * hash values as BloomFilterDet, and toBloomFilterDet() gives the equivalent
+ * bloom filter to send to server 2 after R1 changed.
+ *
+ * A counter stops at 15; a saturated counter is never decremented, so a
+ * removal never causes a false negative.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterCounting extends FnvBloomFilter {
+	private static final int MAX = 15; // maximum value of a 4-bit counter
+
+	private long dataSize; // the number of elements in the filter
+	private int k; // the number of hash functions used
+	private long[] counters; // 16 counters of 4 bits per long
+	private long tableSize;
+
+	/**
+	 * Initialize a counting Bloom filter that can store a set S of cardinality
+	 * setSize. The number of counters is the first prime number bigger than
+	 * setSize * bitsPerElement, the same as BloomFilterDet.
+	 *
+	 * @param setSize
+	 * @param bitsPerElement
+	 */
+	public BloomFilterCounting(int setSize, int bitsPerElement) {
+		this(BloomFilterDet.nextPrime((long) setSize * bitsPerElement), BloomFilterSizing.optimalK(bitsPerElement, 1));
+	}
+
+	/**
+	 * Initialize a counting Bloom filter with a given number of counters.
+	 *
+	 * @param tableSize
+	 *            the number of counters, it should be a prime number
+	 * @param k
+	 *            the number of hash functions
+	 */
+	public BloomFilterCounting(long tableSize, int k) {
+		System.out.println("Create a new BloomFilterCounting instance.");
+		long numWords = (tableSize + 15) >>> 4;
+		if (tableSize <= 0 || numWords > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("A counting filter can not hold " + tableSize + " counters.");
+		}
+		this.dataSize = 0;
+		this.k = k;
+		this.tableSize = tableSize;
+		this.counters = new long[(int) numWords];
+	}
+
+	void addHash(long fnv64, int fnv32) {
+		long h = FnvHash.index(fnv64, tableSize);
+		long step = FnvHash.step(fnv32, tableSize);
+		for (int i = 0; i < k; i++) {
+			int c = counter(h);
+			if (c < MAX)
+				setCounter(h, c + 1);
+			h = FnvHash.nextIndex(h, step, tableSize);
+		}
+		this.dataSize++;
+	}
+
+	/**
+	 * Removes the string s from the filter. This method is case-insensitive.
+	 * Only strings which were added should be removed.
+	 *
+	 * @param s
+	 *            The string to remove
+	 * @return false if s did not appear in the filter (nothing is changed)
+	 */
+	public boolean remove(String s) {
+		if (!appears(s))
+			return false;
+		s = s.toLowerCase();
+		long h = FnvHash.index(FnvHash.fnv64(s), tableSize);
+		long step = FnvHash.step(FnvHash.fnv32(s), tableSize);
+		for (int i = 0; i < k; i++) {
+			int c = counter(h);
+			if (c < MAX)
+				setCounter(h, c - 1);
+			h = FnvHash.nextIndex(h, step, tableSize);
+		}
+		this.dataSize--;
+		return true;
+	}
+
+	boolean appearsHash(long fnv64, int fnv32) {
+		long h = FnvHash.index(fnv64, tableSize);
+		long step = FnvHash.step(fnv32, tableSize);
+		for (int i = 0; i < k; i++) {
+			if (counter(h) == 0)
+				return false;
+			h = FnvHash.nextIndex(h, step, tableSize);
+		}
+		return true;
+	}
+
+	/**
+	 * Build the bloom filter deterministic with the same table size and hash
+	 * functions; a bit is set if its counter is not 0. This is the filter sent
+	 * to server 2.
+	 *
+	 * @return an equivalent BloomFilterDet
+	 */
+	public BloomFilterDet toBloomFilterDet() {
+		BitStore bits = new HeapBitStore(tableSize);
+		for (int w = 0; w < counters.length; w++) {
+			long word = counters[w];
+			if (word == 0)
+				continue;
+			for (int j = 0; j < 16; j++) {
+				if ((word >>> (j << 2) & 0xf) != 0)
+					bits.set(((long) w << 4) + j);
+			}
+		}
+		return new BloomFilterDet(bits, k, dataSize);
+	}
+
+	/**
+	 *
+	 * @return the number of counters of the filter table.
+	 */
+	public long filterSize() {
+		return this.tableSize;
+	}
+
+	/**
+	 *
+	 * @return the number of elements in the filter.
+	 */
+	public long dataSize() {
+		return this.dataSize;
+	}
+
+	/**
+	 *
+	 * @return the number of hash function used.
+	 */
+	public int numHashes() {
+		return this.k;
+	}
+
+	/**
+	 *
+	 * @return the number of counters which are not 0.
+	 */
+	public long bitsSet() {
+		long count = 0;
+		for (long word : counters) {
+			// bit 0 of each 4-bit counter is set if the counter is not 0
+			long any = word | word >>> 1 | word >>> 2 | word >>> 3;
+			count += Long.bitCount(any & 0x1111111111111111L);
+		}
+		return count;
+	}
+
+	/**
+	 * Merge another counting filter of the same size into this one, the
+	 * counters are added (and stop at 15).
+	 *
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		if (!(other instanceof BloomFilterCounting)) {
+			throw new IllegalArgumentException("Can not merge a " + other.getClass().getName() + " into a BloomFilterCounting.");
+		}
+		BloomFilterCounting counting = (BloomFilterCounting) other;
+		if (counting.tableSize != tableSize || counting.k != k) {
+			throw new IllegalArgumentException("Can not merge counting filters of different sizes.");
+		}
+		for (long i = 0; i < tableSize; i++) {
+			int c = counting.counter(i);
+			if (c != 0)
+				setCounter(i, Math.min(MAX, counter(i) + c));
+		}
+		this.dataSize += counting.dataSize;
+	}
+
+	/**
+	 * Compute K different hash values for given string, the same values as
+	 * BloomFilterDet.
+	 *
+	 * @param s
+	 *            given string
+	 * @return an array stored the K hash values
+	 */
+	public long[] computeHashValues(String s) {
+		long[] hs = new long[k];
+		FnvHash.indexes(s, tableSize, hs, k);
+		return hs;
+	}
+
+	/**
+	 * @return the value of the counter at given position
+	 */
+	int counter(long index) {
+		return (int) (counters[(int) (index >>> 4)] >>> ((index & 15) << 2)) & 0xf;
+	}
+
+	private void setCounter(long index, int value) {
+		int w = (int) (index >>> 4);
+		int shift = (int) (index & 15) << 2;
+		counters[w] = (counters[w] & ~(0xfL << shift)) | ((long) value << shift);
+	}
+
+}
@@ -0,0 +1,431 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Cuckoo filter (Fan et al., 2014): a table of buckets of 4 slots which hold
+ * f-bit fingerprints. A key has two buckets, i1 chosen by its hash and
+ * i2 = (H(fingerprint) - i1) mod numBuckets, so that either bucket and the
+ * fingerprint give the other one, and a fingerprint can be moved to its
+ * other bucket without the key (cuckoo hashing). A query reads the two
+ * buckets only, and a key which was not added appears with probability
+ * about 8*load/2^f.
+ *
+ * A key whose fingerprint is already in one of its buckets is not stored
+ * again, so duplicate keys do not fill the table (and keys can not be
+ * removed). When no slot is found after MAX_KICKS moves, the fingerprint
+ * left over is kept aside as the victim, and the filter is full: adding
+ * another key throws an IllegalStateException rather than lose a key.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterCuckoo implements BloomFilter {
+	public static final int BUCKET_SIZE = 4; // slots per bucket
+	public static final double LOAD = 0.9; // fraction of the slots used for the expected set size
+	private static final int MAX_KICKS = 500; // moves before the filter is full
+
+	private final long numBuckets;
+	private final int fingerprintBits; // f
+	private final long fingerprintMask;
+	private final long seed; // the seed of the hash function
+	public final BitStore table; // the fingerprints, f bits per slot, 0 for an empty slot
+	private long dataSize; // the number of elements added to the filter
+	private long entries; // the number of fingerprints stored
+	private long victimBucket = -1; // bucket of the fingerprint which found no slot, -1 if none
+	private long victim;
+	private final Random rand;
+
+	/**
+	 * Initialize a cuckoo filter that can store a set S of cardinality setSize
+	 * with about bitsPerElement bits per element: setSize/(4*LOAD) buckets of
+	 * fingerprints of bitsPerElement*LOAD bits.
+	 *
+	 * @param setSize
+	 * @param bitsPerElement
+	 */
+	public BloomFilterCuckoo(int setSize, int bitsPerElement) {
+		this(bucketsFor(setSize), Math.max(1, Math.min(32, (int) (bitsPerElement * LOAD))), new Random().nextLong());
+	}
+
+	/**
+	 * Initialize an empty cuckoo filter.
+	 *
+	 * @param numBuckets
+	 * @param fingerprintBits
+	 *            in [1, 32]
+	 * @param seed
+	 *            the seed of the hash function: filters with the same seed,
+	 *            number of buckets and fingerprint size can be merged
+	 */
+	public BloomFilterCuckoo(long numBuckets, int fingerprintBits, long seed) {
+		this(new HeapBitStore(numBuckets * BUCKET_SIZE * fingerprintBits), fingerprintBits, seed, 0, -1, 0);
+	}
+
+	/**
+	 * Initialize a cuckoo filter on a table which already stores data, e.g. a
+	 * filter received from another server.
+	 *
+	 * @param table
+	 * @param fingerprintBits
+	 * @param seed
+	 * @param dataSize
+	 *            the number of elements added to the table
+	 * @param victimBucket
+	 *            the bucket of the victim, -1 if none
+	 * @param victim
+	 *            the fingerprint of the victim
+	 */
+	BloomFilterCuckoo(BitStore table, int fingerprintBits, long seed, long dataSize, long victimBucket, long victim) {
+		System.out.println("Create a new BloomFilterCuckoo instance.");
+		if (fingerprintBits < 1 || fingerprintBits > 32) {
+			throw new IllegalArgumentException("The fingerprints should have 1 to 32 bits.");
+		}
+		long slotBits = (long) BUCKET_SIZE * fingerprintBits;
+		if (table.size() == 0 || table.size() % slotBits != 0) {
+			throw new IllegalArgumentException("The size of the table should be a multiple of " + slotBits + ".");
+		}
+		this.numBuckets = table.size() / slotBits;
+		this.fingerprintBits = fingerprintBits;
+		this.fingerprintMask = (1L << fingerprintBits) - 1;
+		this.seed = seed;
+		this.table = table;
+		this.dataSize = dataSize;
+		this.victimBucket = victimBucket;
+		this.victim = victim;
+		this.rand = new Random(seed);
+		for (long slot = 0; slot < numBuckets * BUCKET_SIZE; slot++) {
+			if (slot(slot) != 0)
+				entries++;
+		}
+	}
+
+	/**
+	 * @return the number of buckets for setSize elements at the load LOAD.
+	 */
+	public static long bucketsFor(long setSize) {
+		return Math.max(1, (long) Math.ceil(setSize / (BUCKET_SIZE * LOAD)));
+	}
+
+	/**
+	 * Adds the string s to the filter. This method is case-insensitive.
+	 *
+	 * @param s
+	 */
+	public void add(String s) {
+		addKey(FnvHash.fnv64(s.toLowerCase()));
+	}
+
+	/**
+	 * Adds the string of the UTF-8 bytes buf[off, off+len), the same as
+	 * add(String) but without creating any String.
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void add(byte[] buf, int off, int len) {
+		if (!FnvHash.isAscii(buf, off, len)) {
+			add(new String(buf, off, len, StandardCharsets.UTF_8));
+			return;
+		}
+		addKey(FnvHash.fnv64Lower(buf, off, len));
+	}
+
+	private void addKey(long fnv64) {
+		long h = hash(fnv64);
+		insert(bucket(h), fingerprint(h));
+		dataSize++;
+	}
+
+	/**
+	 * Store a fingerprint in bucket i or in its other bucket, moving other
+	 * fingerprints to their other buckets if both are full.
+	 */
+	private void insert(long i, long f) {
+		long j = otherBucket(i, f);
+		if (contains(i, f) || contains(j, f) || (victimBucket >= 0 && victim == f
+				&& (victimBucket == i || victimBucket == j))) {
+			return;
+		}
+		if (victimBucket >= 0) {
+			throw new IllegalStateException("The cuckoo filter is full.");
+		}
+		if (store(i, f) || store(j, f)) {
+			return;
+		}
+		if (rand.nextBoolean()) {
+			i = j;
+		}
+		for (int kick = 0; kick < MAX_KICKS; kick++) {
+			long slot = i * BUCKET_SIZE + rand.nextInt(BUCKET_SIZE);
+			long moved = slot(slot);
+			setSlot(slot, f);
+			f = moved;
+			i = otherBucket(i, f);
+			if (store(i, f)) {
+				return;
+			}
+		}
+		victimBucket = i;
+		victim = f;
+	}
+
+	private boolean contains(long i, long f) {
+		for (long slot = i * BUCKET_SIZE; slot < (i + 1) * BUCKET_SIZE; slot++) {
+			if (slot(slot) == f)
+				return true;
+		}
+		return false;
+	}
+
+	private boolean store(long i, long f) {
+		for (long slot = i * BUCKET_SIZE; slot < (i + 1) * BUCKET_SIZE; slot++) {
+			if (slot(slot) == 0) {
+				setSlot(slot, f);
+				entries++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long slot(long slot) {
+		return table.getBits(slot * fingerprintBits, fingerprintBits);
+	}
+
+	private void setSlot(long slot, long f) {
+		table.setBits(slot * fingerprintBits, fingerprintBits, f);
+	}
+
+	/**
+	 * Returns true if s appears in the filter; otherwise returns false. This
+	 * method is case-insensitive.
+	 *
+	 * @param s
+	 *            The query String
+	 * @return true if s appears in the filter false otherwise
+	 */
+	public boolean appears(String s) {
+		s = s.toLowerCase();
+		if (s.length() == 0) {
+			throw new IllegalArgumentException("Querry string should not be empty.");
+		}
+		return appearsKey(FnvHash.fnv64(s));
+	}
+
+	/**
+	 * Returns true if the string of the UTF-8 bytes buf[off, off+len) appears
+	 * in the filter, the same as appears(String).
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the string appears in the filter false otherwise
+	 */
+	public boolean appears(byte[] buf, int off, int len) {
+		if (len == 0) {
+			throw new IllegalArgumentException("Querry string should not be empty.");
+		}
+		if (!FnvHash.isAscii(buf, off, len)) {
+			return appears(new String(buf, off, len, StandardCharsets.UTF_8));
+		}
+		return appearsKey(FnvHash.fnv64Lower(buf, off, len));
+	}
+
+	private boolean appearsKey(long fnv64) {
+		long h = hash(fnv64);
+		long f = fingerprint(h);
+		long i = bucket(h);
+		long j = otherBucket(i, f);
+		return contains(i, f) || contains(j, f) || (victimBucket >= 0 && victim == f && (victimBucket == i || victimBucket == j));
+	}
+
+	/**
+	 * The 64-bit hash of a key: its FNV64 xor the seed, mixed by the finalizer
+	 * of MurmurHash3.
+	 */
+	private long hash(long fnv64) {
+		return mix(fnv64 ^ seed);
+	}
+
+	private static long mix(long x) {
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+
+	/**
+	 * The first bucket of a hash, chosen by its high bits.
+	 */
+	private long bucket(long h) {
+		return Math.multiplyHigh(h, numBuckets) + ((h >> 63) & numBuckets);
+	}
+
+	/**
+	 * The fingerprint of a hash, from its low bits, never 0 (an empty slot).
+	 */
+	private long fingerprint(long h) {
+		long f = h & fingerprintMask;
+		return f == 0 ? 1 : f;
+	}
+
+	/**
+	 * The other bucket of a fingerprint in bucket i: (H(f) - i) mod
+	 * numBuckets, so that the other bucket of the other bucket is i.
+	 */
+	private long otherBucket(long i, long f) {
+		long j = bucket(mix(f + seed)) - i;
+		return j < 0 ? j + numBuckets : j;
+	}
+
+	/**
+	 *
+	 * @return the size of the table in bits.
+	 */
+	public long filterSize() {
+		return table.size();
+	}
+
+	/**
+	 *
+	 * @return the number of elements added to the filter.
+	 */
+	public long dataSize() {
+		return dataSize;
+	}
+
+	/**
+	 *
+	 * @return the number of buckets read by a query, 2.
+	 */
+	public int numHashes() {
+		return 2;
+	}
+
+	/**
+	 *
+	 * @return the number of bits of a fingerprint.
+	 */
+	public int fingerprintBits() {
+		return fingerprintBits;
+	}
+
+	/**
+	 *
+	 * @return the seed of the hash function.
+	 */
+	long seed() {
+		return seed;
+	}
+
+	/**
+	 *
+	 * @return the bucket of the victim, -1 if none.
+	 */
+	long victimBucket() {
+		return victimBucket;
+	}
+
+	/**
+	 *
+	 * @return the fingerprint of the victim.
+	 */
+	long victim() {
+		return victim;
+	}
+
+	/**
+	 *
+	 * @return the number of buckets.
+	 */
+	public long numBuckets() {
+		return numBuckets;
+	}
+
+	/**
+	 * Compute one bucket of given string.
+	 *
+	 * @param s
+	 *            given string
+	 * @param j
+	 *            jth bucket of the string (j is 0 or 1)
+	 * @return the index of the bucket, in BigInteger type
+	 */
+	public BigInteger computeHashValue(String s, int j) {
+		if (j < 0 || j > 1) {
+			throw new IllegalArgumentException("The bucket should be 0 or 1.");
+		}
+		return BigInteger.valueOf(computeHashValues(s)[j]);
+	}
+
+	/**
+	 * Compute the two buckets of given string.
+	 *
+	 * @param s
+	 *            given string
+	 * @return an array stored the indices of the 2 buckets
+	 */
+	public long[] computeHashValues(String s) {
+		long h = hash(FnvHash.fnv64(s));
+		long i = bucket(h);
+		return new long[] { i, otherBucket(i, fingerprint(h)) };
+	}
+
+	/**
+	 * Add the fingerprints of another cuckoo filter with the same number of
+	 * buckets, fingerprint size and seed, e.g. a partial filter built by
+	 * another thread. The data size becomes the sum of the two data sizes.
+	 *
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		if (!(other instanceof BloomFilterCuckoo)) {
+			throw new IllegalArgumentException("Can not merge a " + other.getClass().getName() + " into a BloomFilterCuckoo.");
+		}
+		BloomFilterCuckoo cuckoo = (BloomFilterCuckoo) other;
+		if (cuckoo.numBuckets != numBuckets || cuckoo.fingerprintBits != fingerprintBits || cuckoo.seed != seed) {
+			throw new IllegalArgumentException("Can not merge cuckoo filters with different buckets or hash functions.");
+		}
+		for (long slot = 0; slot < numBuckets * BUCKET_SIZE; slot++) {
+			long f = cuckoo.slot(slot);
+			if (f != 0)
+				insert(slot / BUCKET_SIZE, f);
+		}
+		if (cuckoo.victimBucket >= 0) {
+			insert(cuckoo.victimBucket, cuckoo.victim);
+		}
+		this.dataSize += cuckoo.dataSize;
+	}
+
+	/**
+	 *
+	 * @return the number of bits of the table which are set.
+	 */
+	public long bitsSet() {
+		return table.cardinality();
+	}
+
+	/**
+	 * A key which was not added appears if one of the fingerprints of its two
+	 * buckets is its fingerprint.
+	 *
+	 * @return 1 - (1 - 2^-f)^(8*load)
+	 */
+	public double estimatedFpr() {
+		double load = (double) entries / (numBuckets * BUCKET_SIZE);
+		return 1 - Math.pow(1 - Math.pow(2, -fingerprintBits), 2 * BUCKET_SIZE * load);
+	}
+
+	/**
+	 *
+	 * @return the number of fingerprints stored, i.e. the distinct keys
+	 *         except for fingerprint collisions.
+	 */
+	public double estimatedCardinality() {
+		return entries + (victimBucket >= 0 ? 1 : 0);
+	}
+}
@@ -1,5 +1,8 @@
-import java.math.BigInteger;
-import java.util.BitSet;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 /**
  * Bloom Filter with deterministic hash function.
@@ -7,76 +10,236 @@ import java.util.BitSet;
  * @author Yan Deng
  *
  */
-public class BloomFilterDet implements BloomFilter{
+public class BloomFilterDet extends FnvBloomFilter {
+	private static final int PROBE_BLOCK = 256; // keys hashed together by the batch appears()
+
 	private int setSize; // the size of S
 	private int bitsPerElement; // the number of bits per element
-	private int dataSize; // the number of elements added to the filter
+	private long dataSize; // the number of elements added to the filter
 	private int k; // the number of hash functions used
-	public BitSet bitSet; // T[h(x)]=1 if x is in S
-	private int bitSetSize;
-
-	private static final BigInteger FNV64INIT = new BigInteger("cbf29ce484222325", 16);
-	private static final BigInteger FNV64PRIME = new BigInteger("100000001b3", 16);
-	private static final BigInteger DOMINATOR64 = new BigInteger("2").pow(64);
-	private static final BigInteger FNV32INIT = new BigInteger("811c9dc5", 16);
-	private static final BigInteger FNV32PRIME = new BigInteger("01000193", 16);
-	private static final BigInteger DOMINATOR32 = new BigInteger("2").pow(32);
+	public BitStore bitStore; // T[h(x)]=1 if x is in S
+	private long bitSetSize;
+	private ByteBuffer params; // k and dataSize in a mapped file, null otherwise
 
 	/**
 	 * Initialize a Bloom filter that can store a set S of cardinality setSize. The
 	 * size of the filter should approximately be setSize * bitsPerElement. The
 	 * number of hash functions should be the optimal choice which is
-	 * ln2×filterSize/setSize.
+	 * the better integer around ln2×filterSize/setSize.
 	 * 
 	 * @param setSize
 	 * @param bitsPerElement
 	 */
 	public BloomFilterDet(int setSize, int bitsPerElement) {
-		System.out.println("Create a new BloomFilterDet instance.");
+		this(new HeapBitStore(nextPrime((long) setSize * bitsPerElement)), BloomFilterSizing.optimalK(bitsPerElement, 1));
 		this.setSize = setSize;
 		this.bitsPerElement = bitsPerElement;
+	}
+
+	/**
+	 * Initialize a Bloom filter on a given bit storage. The size of the filter
+	 * is the size of the storage.
+	 * 
+	 * @param bitStore
+	 *            an empty bit storage, its size should be a prime number
+	 * @param k
+	 *            the number of hash functions
+	 */
+	public BloomFilterDet(BitStore bitStore, int k) {
+		System.out.println("Create a new BloomFilterDet instance.");
 		this.dataSize = 0;
-		this.k = (int) (Math.log(2) * bitsPerElement);
-		this.bitSetSize = nextPrime(setSize * bitsPerElement);
-		this.bitSet = new BitSet(bitSetSize);
+		this.k = k;
+		this.bitSetSize = bitStore.size();
+		this.bitStore = bitStore;
 		// System.out.println("Created a new BloomFilterDet instance.");
 	}
 
 	/**
-	 * Adds the string s to the filter. This method should be case-insensitive.
-	 * For example, it should not distinguish between “Galaxy” and “galaxy”.
+	 * Initialize a Bloom filter on a bit storage which already stores data,
+	 * e.g. a filter received from another server.
 	 * 
-	 * @param s
-	 *            The input string
+	 * @param bitStore
+	 * @param k
+	 * @param dataSize
+	 *            the number of elements added to the storage
 	 */
-	public void add(String s) {
-		s = s.toLowerCase();
-		int[] hs = computeHashValues(s);
-		for (int h : hs) {
-			bitSet.set(h);
+	BloomFilterDet(BitStore bitStore, int k, long dataSize) {
+		this(bitStore, k);
+		this.dataSize = dataSize;
+	}
+
+	/**
+	 * Create a Bloom filter in a memory-mapped file, it can be reopened by
+	 * open() without adding the data again.
+	 * 
+	 * @param file
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @return a new empty filter
+	 * @throws IOException
+	 */
+	public static BloomFilterDet create(File file, long setSize, int bitsPerElement) throws IOException {
+		MappedBitStore store = MappedBitStore.create(file, nextPrime(setSize * bitsPerElement), 16);
+		BloomFilterDet bf = new BloomFilterDet(store, BloomFilterSizing.optimalK(bitsPerElement, 1));
+		bf.params = store.params();
+		bf.params.putInt(0, bf.k);
+		return bf;
+	}
+
+	/**
+	 * Reopen a Bloom filter created by create().
+	 * 
+	 * @param file
+	 * @return the filter stored in the file
+	 * @throws IOException
+	 */
+	public static BloomFilterDet open(File file) throws IOException {
+		MappedBitStore store = MappedBitStore.open(file);
+		ByteBuffer params = store.params();
+		BloomFilterDet bf = new BloomFilterDet(store, params.getInt(0), params.getLong(8));
+		bf.params = params;
+		return bf;
+	}
+
+	void addHash(long fnv64, int fnv32) {
+		// FNV64(s)+FNV32(s)*i, both hashes are computed only once
+		long h = FnvHash.index(fnv64, bitSetSize);
+		long step = FnvHash.step(fnv32, bitSetSize);
+		for (int i = 0; i < k; i++) {
+			bitStore.set(h);
+			h = FnvHash.nextIndex(h, step, bitSetSize);
 		}
 		this.dataSize++;
+		if (params != null)
+			params.putLong(8, dataSize);
+	}
+
+	boolean appearsHash(long fnv64, int fnv32) {
+		long h = FnvHash.index(fnv64, bitSetSize);
+		long step = FnvHash.step(fnv32, bitSetSize);
+		for (int i = 0; i < k; i++) {
+			if (!bitStore.get(h))
+				return false;
+			h = FnvHash.nextIndex(h, step, bitSetSize);
+		}
+		return true;
 	}
 
 	/**
-	 * Returns true if s appears in the filter; otherwise returns false. This
-	 * method must also be case-insensitive.
-	 * 
-	 * @param s
-	 *            The query String
-	 * @return true if s appears in the filter false otherwise
+	 * Probe a batch of strings, see BloomFilter.appears(String[], int, long[]).
+	 * The hash values of a block of keys are computed first, then the bits
+	 * are looked up one hash function at a time for all the keys of the
+	 * block: the lookups of different keys do not depend on each other, so
+	 * the processor can wait for several cache misses at once instead of one
+	 * per key.
 	 */
-	public boolean appears(String s) {
-		s = s.toLowerCase();
-		if (s.length() == 0 || s == null) {
-			throw new IllegalArgumentException("Querry string should not be empty.");
-		} else {
-			int[] hs = computeHashValues(s);
-			for (int h : hs) {
-				if (!bitSet.get(h))
-					return false;
+	public void appears(String[] keys, int count, long[] result) {
+		appears(bitStore, bitSetSize, k, keys, count, result);
+	}
+
+	/**
+	 * Probe a batch of strings given as slices of a byte array, in the same
+	 * way as appears(String[], int, long[]) but without creating any String.
+	 */
+	public void appears(byte[] buf, int[] offsets, int[] lengths, int count, long[] result) {
+		appears(bitStore, bitSetSize, k, buf, offsets, lengths, count, result);
+	}
+
+	/**
+	 * Batch probe of a table with the hash values of BloomFilterDet, also
+	 * used by BloomFilterConcurrent.
+	 */
+	static void appears(BitStore store, long bitSetSize, int k, String[] keys, int count, long[] result) {
+		Arrays.fill(result, 0, (count + 63) >>> 6, 0L);
+		int size = Math.min(count, PROBE_BLOCK);
+		long[] h = new long[size];
+		long[] step = new long[size];
+		int[] alive = new int[size]; // keys of the block which may appear
+		for (int start = 0; start < count; start += PROBE_BLOCK) {
+			int n = Math.min(PROBE_BLOCK, count - start);
+			for (int j = 0; j < n; j++) {
+				String s = keys[start + j].toLowerCase();
+				if (s.length() == 0) {
+					throw new IllegalArgumentException("Querry string should not be empty.");
+				}
+				h[j] = FnvHash.index(FnvHash.fnv64(s), bitSetSize);
+				step[j] = FnvHash.step(FnvHash.fnv32(s), bitSetSize);
 			}
-			return true;
+			probeBlock(store, bitSetSize, k, h, step, alive, start, n, result);
+		}
+	}
+
+	/**
+	 * Batch probe of byte slices, see appears(BitStore, long, int, String[],
+	 * int, long[]).
+	 */
+	static void appears(BitStore store, long bitSetSize, int k, byte[] buf, int[] offsets, int[] lengths,
+			int count, long[] result) {
+		Arrays.fill(result, 0, (count + 63) >>> 6, 0L);
+		int size = Math.min(count, PROBE_BLOCK);
+		long[] h = new long[size];
+		long[] step = new long[size];
+		int[] alive = new int[size];
+		for (int start = 0; start < count; start += PROBE_BLOCK) {
+			int n = Math.min(PROBE_BLOCK, count - start);
+			for (int j = 0; j < n; j++) {
+				int off = offsets[start + j];
+				int len = lengths[start + j];
+				if (len == 0) {
+					throw new IllegalArgumentException("Querry string should not be empty.");
+				}
+				// both hashes of the lower case bytes in one pass
+				long fnv64 = FnvHash.FNV64INIT;
+				int fnv32 = FnvHash.FNV32INIT;
+				boolean ascii = true;
+				int end = off + len;
+				for (int i = off; i < end; i++) {
+					int c = buf[i];
+					if (c < 0) {
+						ascii = false;
+						break;
+					}
+					if (c >= 'A' && c <= 'Z')
+						c += 'a' - 'A';
+					fnv64 = (fnv64 ^ c) * FnvHash.FNV64PRIME;
+					fnv32 = (fnv32 ^ c) * FnvHash.FNV32PRIME;
+				}
+				if (!ascii) {
+					String s = new String(buf, off, len, StandardCharsets.UTF_8).toLowerCase();
+					fnv64 = FnvHash.fnv64(s);
+					fnv32 = FnvHash.fnv32(s);
+				}
+				h[j] = FnvHash.index(fnv64, bitSetSize);
+				step[j] = FnvHash.step(fnv32, bitSetSize);
+			}
+			probeBlock(store, bitSetSize, k, h, step, alive, start, n, result);
+		}
+	}
+
+	/**
+	 * Look up the bits of a hashed block of n keys, one hash function at a
+	 * time; a key is dropped at its first zero bit. The bits of the keys which
+	 * appear are set in result, from bit start.
+	 */
+	private static void probeBlock(BitStore store, long bitSetSize, int k, long[] h, long[] step, int[] alive,
+			int start, int n, long[] result) {
+		for (int j = 0; j < n; j++) {
+			alive[j] = j;
+		}
+		for (int i = 0; i < k && n > 0; i++) {
+			int m = 0;
+			for (int a = 0; a < n; a++) {
+				int j = alive[a];
+				if (store.get(h[j])) {
+					h[j] = FnvHash.nextIndex(h[j], step[j], bitSetSize);
+					alive[m++] = j;
+				}
+			}
+			n = m;
+		}
+		for (int a = 0; a < n; a++) {
+			int bit = start + alive[a];
+			result[bit >>> 6] |= 1L << bit;
 		}
 	}
 
@@ -84,7 +247,7 @@ public class BloomFilterDet implements BloomFilter{
 	 * 
 	 * @return the size of the filter table.
 	 */
-	public int filterSize() {
+	public long filterSize() {
 		return this.bitSetSize;
 	}
 
@@ -92,7 +255,7 @@ public class BloomFilterDet implements BloomFilter{
 	 * 
 	 * @return the number of elements added to the filter.
 	 */
-	public int dataSize() {
+	public long dataSize() {
 		return this.dataSize;
 	}
 
@@ -105,37 +268,36 @@ public class BloomFilterDet implements BloomFilter{
 	}
 
 	/**
-	 * Compute the hash value of given string using FNV method.
 	 * 
-	 * @param s
-	 *            given string
-	 * @param fnv
-	 *            32: using FNV32; 64: using FNV64
-	 * @return hash value in BigInteger type
-	 */
-	public BigInteger computeHashValue(String s, int fnv) {
-		BigInteger h;
-		BigInteger prime;
-		BigInteger dominator;
-
-		if (fnv == 32) {
-			h = FNV32INIT;
-			prime = FNV32PRIME;
-			dominator = DOMINATOR32;
-		} else if (fnv == 64) {
-			h = FNV64INIT;
-			prime = FNV64PRIME;
-			dominator = DOMINATOR64;
+	 * @return the number of bits of the table which are set.
+	 */
+	public long bitsSet() {
+		return bitStore.cardinality();
+	}
 
+	/**
+	 * Merge another deterministic filter (BloomFilterDet or
+	 * BloomFilterConcurrent) of the same size into this one. The data size
+	 * becomes the sum of the two data sizes.
+	 * 
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		BitStore otherStore;
+		if (other instanceof BloomFilterDet) {
+			otherStore = ((BloomFilterDet) other).bitStore;
+		} else if (other instanceof BloomFilterConcurrent) {
+			otherStore = ((BloomFilterConcurrent) other).bitStore;
 		} else {
-			String ex = "The value of 2nd argument of computeHashValue method can be only 32 or 64.";
-			throw new IllegalArgumentException(ex);
+			throw new IllegalArgumentException("Can not merge a " + other.getClass().getName() + " into a BloomFilterDet.");
 		}
-		for (int i = 0; i < s.length(); i++) {
-			h = h.xor(BigInteger.valueOf(s.charAt(i))); // XOR
-			h = h.multiply(prime).mod(dominator); // *FNVPRIME%(2^64)(or 2^32)
+		if (other.numHashes() != k) {
+			throw new IllegalArgumentException("Can not merge filters with different numbers of hash functions.");
 		}
-		return h;
+		bitStore.or(otherStore);
+		this.dataSize += other.dataSize();
+		if (params != null)
+			params.putLong(8, dataSize);
 	}
 
 	/**
@@ -145,18 +307,27 @@ public class BloomFilterDet implements BloomFilter{
 	 *            given string
 	 * @return an array stored the K hash values
 	 */
-	public int[] computeHashValues(String s) {
-		int[] hs = new int[k];
-		BigInteger h;
-		for (int i = 0; i < k; i++) {
-			// FNV64(s)+FNV32(s)*i
-			h = (computeHashValue(s, 64).add(computeHashValue(s, 32).multiply(BigInteger.valueOf(i))))
-					.mod(BigInteger.valueOf(bitSetSize));
-			hs[i] = h.intValue();
-		}
+	public long[] computeHashValues(String s) {
+		long[] hs = new long[k];
+		computeHashValues(s, hs);
 		return hs;
 	}
 
+	/**
+	 * Compute K different hash values for given string into a caller supplied
+	 * array, so that no object is allocated per call. FNV64 and FNV32 are
+	 * computed once, the K values are derived by double hashing.
+	 * 
+	 * @param s
+	 *            given string
+	 * @param hs
+	 *            array of at least K elements to store the hash values
+	 */
+	public void computeHashValues(CharSequence s, long[] hs) {
+		// (FNV64(s)+FNV32(s)*i)%bitSetSize, the same as the BigInteger version
+		FnvHash.indexes(s, bitSetSize, hs, k);
+	}
+
 	/**
 	 * Check if the given integer is a prime or not.
 	 * 
@@ -190,4 +361,37 @@ public class BloomFilterDet implements BloomFilter{
 		// System.out.println("Next prime is " + nextPrime);
 		return nextPrime;
 	}
+
+	/**
+	 * Check if the given long integer is a prime or not.
+	 * 
+	 * @param num
+	 * @return true: is a prime; false: else.
+	 */
+	public static boolean isPrime(long num) {
+		if (num == 2)
+			return true;
+		if (num % 2 == 0)
+			return false;
+		for (long i = 3; i * i <= num; i += 2)
+			if (num % i == 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Find the first prime bigger than the given long integer.
+	 * @param num
+	 * @return a prime number
+	 */
+	public static long nextPrime(long num) {
+		long nextPrime = num;
+		if (nextPrime % 2 == 0)
+			nextPrime += 1;
+
+		while (!isPrime(nextPrime)) {
+			nextPrime += 2;
+		}
+		return nextPrime;
+	}
 }
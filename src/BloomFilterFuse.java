@@ -0,0 +1,462 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Binary fuse filter (Graf and Lemire, 2022), a static alternative to a bloom
+ * filter for a set which is built once and then only queried, such as R1 in
+ * a bloom join. Each key has a fingerprint of f bits and three positions in
+ * a table of f-bit slots, one in each of three consecutive segments; the
+ * table is built so that the xor of the three slots of every key is its
+ * fingerprint. A key which was not added appears with probability 2^-f, and
+ * the table has about 1.125 slots per key (less for large sets), i.e. about
+ * 1.125*f bits per key instead of 1.44*f for a bloom filter with the same
+ * rate, and a query reads three slots instead of k bits.
+ *
+ * The table can not be updated: add() keeps the FNV64 of the key, and the
+ * table is built from all the keys when it is first needed (appears(),
+ * filterSize(), the serializer) or by build(). Adding a key after that builds
+ * the table again. Building needs about 30 bytes per key for a short time. A
+ * filter received from another server has no keys and can only be queried.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterFuse implements BloomFilter {
+	private static final int ARITY = 3; // positions per key
+	private static final int MAX_SEGMENT_LENGTH = 1 << 18;
+	private static final int MAX_ATTEMPTS = 100; // seeds tried before giving up
+
+	private final int fingerprintBits; // f
+	private final long fingerprintMask;
+	private long[] keys; // FNV64 of the keys added, null for a received filter
+	private int numKeys; // number of keys in keys
+	private volatile boolean built; // false until the table is built from all the keys added
+	private long dataSize; // the number of elements added to the filter
+	private long size; // the number of distinct keys in the table
+	private long seed; // the seed of the table, chosen when it is built
+	private int segmentLength;
+	private int segmentLengthMask;
+	private long segmentCountLength; // segmentCount * segmentLength
+	private int arrayLength; // slots of the table
+	public BitStore table; // the fingerprints, f bits per slot
+	private final Random rand = new Random();
+
+	/**
+	 * Initialize an empty binary fuse filter with fingerprints of
+	 * fingerprintBits bits.
+	 *
+	 * @param fingerprintBits
+	 *            in [1, 32], the false positive rate is 2^-fingerprintBits
+	 */
+	public BloomFilterFuse(int fingerprintBits) {
+		System.out.println("Create a new BloomFilterFuse instance.");
+		if (fingerprintBits < 1 || fingerprintBits > 32) {
+			throw new IllegalArgumentException("The fingerprints should have 1 to 32 bits.");
+		}
+		this.fingerprintBits = fingerprintBits;
+		this.fingerprintMask = (1L << fingerprintBits) - 1;
+		this.keys = new long[16];
+	}
+
+	/**
+	 * Initialize a binary fuse filter that can store a set S of cardinality
+	 * setSize with at most bitsPerElement bits per element: the fingerprints
+	 * have bitsPerElement/1.125 bits.
+	 *
+	 * @param setSize
+	 * @param bitsPerElement
+	 */
+	public BloomFilterFuse(int setSize, int bitsPerElement) {
+		this(Math.max(1, Math.min(32, (int) (bitsPerElement / 1.125))));
+		this.keys = new long[Math.max(16, setSize)];
+	}
+
+	/**
+	 * Initialize a binary fuse filter on a table which is already built, e.g.
+	 * a filter received from another server.
+	 *
+	 * @param table
+	 * @param fingerprintBits
+	 * @param seed
+	 *            the seed of the table
+	 * @param size
+	 *            the number of distinct keys in the table
+	 * @param dataSize
+	 *            the number of elements added to the table
+	 */
+	BloomFilterFuse(BitStore table, int fingerprintBits, long seed, long size, long dataSize) {
+		this(fingerprintBits);
+		this.keys = null;
+		this.seed = seed;
+		this.size = size;
+		this.dataSize = dataSize;
+		layout(size);
+		if (table.size() != (long) arrayLength * fingerprintBits) {
+			throw new IllegalArgumentException("The table does not have the size of " + size + " keys.");
+		}
+		this.table = table;
+		this.built = true;
+	}
+
+	/**
+	 * Adds the string s to the filter. This method is case-insensitive.
+	 *
+	 * @param s
+	 */
+	public void add(String s) {
+		addKey(FnvHash.fnv64(s.toLowerCase()));
+	}
+
+	/**
+	 * Adds the string of the UTF-8 bytes buf[off, off+len), the same as
+	 * add(String) but without creating any String.
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void add(byte[] buf, int off, int len) {
+		if (!FnvHash.isAscii(buf, off, len)) {
+			add(new String(buf, off, len, StandardCharsets.UTF_8));
+			return;
+		}
+		addKey(FnvHash.fnv64Lower(buf, off, len));
+	}
+
+	private void addKey(long fnv64) {
+		if (keys == null) {
+			throw new IllegalStateException("A binary fuse filter received without its keys can not be added to.");
+		}
+		if (numKeys == keys.length) {
+			if (numKeys == Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("A binary fuse filter can not hold more than " + numKeys + " keys.");
+			}
+			keys = Arrays.copyOf(keys, (int) Math.min(Integer.MAX_VALUE - 8, 2L * numKeys));
+		}
+		keys[numKeys++] = fnv64;
+		dataSize++;
+		built = false;
+	}
+
+	/**
+	 * Returns true if s appears in the filter; otherwise returns false. This
+	 * method is case-insensitive.
+	 *
+	 * @param s
+	 *            The query String
+	 * @return true if s appears in the filter false otherwise
+	 */
+	public boolean appears(String s) {
+		s = s.toLowerCase();
+		if (s.length() == 0) {
+			throw new IllegalArgumentException("Querry string should not be empty.");
+		}
+		return appearsKey(FnvHash.fnv64(s));
+	}
+
+	/**
+	 * Returns true if the string of the UTF-8 bytes buf[off, off+len) appears
+	 * in the filter, the same as appears(String).
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the string appears in the filter false otherwise
+	 */
+	public boolean appears(byte[] buf, int off, int len) {
+		if (len == 0) {
+			throw new IllegalArgumentException("Querry string should not be empty.");
+		}
+		if (!FnvHash.isAscii(buf, off, len)) {
+			return appears(new String(buf, off, len, StandardCharsets.UTF_8));
+		}
+		return appearsKey(FnvHash.fnv64Lower(buf, off, len));
+	}
+
+	private boolean appearsKey(long fnv64) {
+		if (!built)
+			build();
+		long h = hash(fnv64);
+		long h0 = Math.multiplyHigh(h, segmentCountLength) + ((h >> 63) & segmentCountLength);
+		long h1 = (h0 + segmentLength) ^ ((h >>> 18) & segmentLengthMask);
+		long h2 = (h0 + 2 * segmentLength) ^ (h & segmentLengthMask);
+		long f = table.getBits(h0 * fingerprintBits, fingerprintBits) ^ table.getBits(h1 * fingerprintBits, fingerprintBits)
+				^ table.getBits(h2 * fingerprintBits, fingerprintBits);
+		return f == fingerprint(h);
+	}
+
+	/**
+	 * Build the table from the keys added, if it is not built yet. Duplicate
+	 * keys are removed first. A seed whose positions can not be solved (a few
+	 * percent of them for small sets) is replaced by another one. The callers
+	 * check the volatile built flag before taking the lock, so that the
+	 * queries of a built filter are not synchronized.
+	 */
+	public synchronized void build() {
+		if (built || keys == null) {
+			return;
+		}
+		long[] distinct = Arrays.copyOf(keys, numKeys);
+		Arrays.sort(distinct);
+		int n = 0;
+		for (int i = 0; i < distinct.length; i++) {
+			if (i == 0 || distinct[i] != distinct[i - 1])
+				distinct[n++] = distinct[i];
+		}
+		layout(n);
+		int[] count = new int[arrayLength]; // number of keys of a slot * 4, xor of their position (0, 1, 2)
+		long[] xorHash = new long[arrayLength]; // xor of the hashes of the keys of a slot
+		int[] alone = new int[arrayLength]; // slots with one key left
+		long[] stackHash = new long[n];
+		byte[] stackPosition = new byte[n];
+		long[] hs = new long[ARITY];
+		int stackSize = 0;
+		for (int attempt = 0; stackSize < n; attempt++) {
+			if (attempt == MAX_ATTEMPTS) {
+				throw new IllegalStateException("Could not build a binary fuse filter of " + n + " keys.");
+			}
+			seed = rand.nextLong();
+			Arrays.fill(count, 0);
+			Arrays.fill(xorHash, 0);
+			for (int i = 0; i < n; i++) {
+				long h = hash(distinct[i]);
+				positions(h, hs);
+				for (int j = 0; j < ARITY; j++) {
+					int p = (int) hs[j];
+					count[p] = (count[p] + 4) ^ j;
+					xorHash[p] ^= h;
+				}
+			}
+			// peel the slots with a single key, the last key of a slot is stored there
+			int queueSize = 0;
+			for (int p = 0; p < arrayLength; p++) {
+				if (count[p] >> 2 == 1)
+					alone[queueSize++] = p;
+			}
+			stackSize = 0;
+			while (queueSize > 0) {
+				int p = alone[--queueSize];
+				if (count[p] >> 2 != 1)
+					continue;
+				long h = xorHash[p];
+				int found = count[p] & 3;
+				stackHash[stackSize] = h;
+				stackPosition[stackSize++] = (byte) found;
+				positions(h, hs);
+				for (int j = 0; j < ARITY; j++) {
+					if (j == found)
+						continue;
+					int q = (int) hs[j];
+					count[q] = (count[q] - 4) ^ j;
+					xorHash[q] ^= h;
+					if (count[q] >> 2 == 1)
+						alone[queueSize++] = q;
+				}
+			}
+		}
+		// assign the keys in the reverse order of the peeling
+		table = new HeapBitStore((long) arrayLength * fingerprintBits);
+		for (int i = n - 1; i >= 0; i--) {
+			long h = stackHash[i];
+			positions(h, hs);
+			long f = fingerprint(h);
+			for (int j = 0; j < ARITY; j++) {
+				f ^= table.getBits(hs[j] * fingerprintBits, fingerprintBits);
+			}
+			table.setBits(hs[stackPosition[i]] * fingerprintBits, fingerprintBits, f);
+		}
+		size = n;
+		built = true;
+	}
+
+	/**
+	 * Compute the segments of the table for size keys, as in the reference
+	 * implementation of binary fuse filters: segments of 2^(log(size)/log(3.33)
+	 * + 2.25) slots, and size * max(1.125, 0.875 + 0.25*log(10^6)/log(size))
+	 * slots in total.
+	 */
+	private void layout(long size) {
+		segmentLength = size == 0 ? 4
+				: Math.min(MAX_SEGMENT_LENGTH, 1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25));
+		segmentLengthMask = segmentLength - 1;
+		double sizeFactor = size <= 1 ? 0 : Math.max(1.125, 0.875 + 0.25 * Math.log(1000000) / Math.log(size));
+		long capacity = size <= 1 ? 0 : Math.round(size * sizeFactor);
+		long segmentCount = (capacity + segmentLength - 1) / segmentLength - (ARITY - 1);
+		long length = (segmentCount + ARITY - 1) * segmentLength;
+		segmentCount = (length + segmentLength - 1) / segmentLength;
+		segmentCount = segmentCount <= ARITY - 1 ? 1 : segmentCount - (ARITY - 1);
+		length = (segmentCount + ARITY - 1) * segmentLength;
+		if (length > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("A binary fuse filter can not hold " + size + " keys.");
+		}
+		arrayLength = (int) length;
+		segmentCountLength = segmentCount * segmentLength;
+	}
+
+	/**
+	 * The 64-bit hash of a key: its FNV64 plus the seed, mixed by the
+	 * finalizer of MurmurHash3.
+	 */
+	private long hash(long fnv64) {
+		long x = fnv64 + seed;
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+
+	private long fingerprint(long h) {
+		return (h ^ (h >>> 32)) & fingerprintMask;
+	}
+
+	/**
+	 * The three slots of a hash: a slot of the first segment chosen by the
+	 * high bits of the hash, and one in each of the two next segments.
+	 */
+	private void positions(long h, long[] hs) {
+		long h0 = Math.multiplyHigh(h, segmentCountLength) + ((h >> 63) & segmentCountLength);
+		hs[0] = h0;
+		hs[1] = (h0 + segmentLength) ^ ((h >>> 18) & segmentLengthMask);
+		hs[2] = (h0 + 2 * segmentLength) ^ (h & segmentLengthMask);
+	}
+
+	/**
+	 *
+	 * @return the size of the table in bits.
+	 */
+	public long filterSize() {
+		if (!built)
+			build();
+		return table.size();
+	}
+
+	/**
+	 *
+	 * @return the number of elements added to the filter.
+	 */
+	public long dataSize() {
+		return dataSize;
+	}
+
+	/**
+	 *
+	 * @return the number of slots read by a query, 3.
+	 */
+	public int numHashes() {
+		return ARITY;
+	}
+
+	/**
+	 *
+	 * @return the number of bits of a fingerprint.
+	 */
+	public int fingerprintBits() {
+		return fingerprintBits;
+	}
+
+	/**
+	 *
+	 * @return the seed of the table.
+	 */
+	long seed() {
+		if (!built)
+			build();
+		return seed;
+	}
+
+	/**
+	 *
+	 * @return the number of distinct keys in the table.
+	 */
+	long size() {
+		if (!built)
+			build();
+		return size;
+	}
+
+	/**
+	 * Compute one slot of given string.
+	 *
+	 * @param s
+	 *            given string
+	 * @param j
+	 *            jth slot of the string (j is in range [0, 2])
+	 * @return the index of the slot in the table, in BigInteger type
+	 */
+	public BigInteger computeHashValue(String s, int j) {
+		if (j < 0 || j >= ARITY) {
+			throw new IllegalArgumentException("The position should be in range [0, " + (ARITY - 1) + "].");
+		}
+		return BigInteger.valueOf(computeHashValues(s)[j]);
+	}
+
+	/**
+	 * Compute the three slots of given string.
+	 *
+	 * @param s
+	 *            given string
+	 * @return an array stored the indices of the 3 slots in the table
+	 */
+	public long[] computeHashValues(String s) {
+		if (!built)
+			build();
+		long[] hs = new long[ARITY];
+		positions(hash(FnvHash.fnv64(s)), hs);
+		return hs;
+	}
+
+	/**
+	 * Add the keys of another binary fuse filter with the same fingerprint
+	 * size, e.g. a partial filter built by another thread. Both filters must
+	 * still have their keys.
+	 *
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		if (!(other instanceof BloomFilterFuse)) {
+			throw new IllegalArgumentException("Can not merge a " + other.getClass().getName() + " into a BloomFilterFuse.");
+		}
+		BloomFilterFuse fuse = (BloomFilterFuse) other;
+		if (fuse.fingerprintBits != fingerprintBits) {
+			throw new IllegalArgumentException("Can not merge filters with different fingerprint sizes.");
+		}
+		if (keys == null || fuse.keys == null) {
+			throw new IllegalArgumentException("Can not merge a binary fuse filter received without its keys.");
+		}
+		for (int i = 0; i < fuse.numKeys; i++) {
+			addKey(fuse.keys[i]);
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of bits of the table which are set.
+	 */
+	public long bitsSet() {
+		if (!built)
+			build();
+		return table.cardinality();
+	}
+
+	/**
+	 * A key which was not added appears if the xor of its three slots, which
+	 * is a random number, is its fingerprint.
+	 *
+	 * @return 2^-f
+	 */
+	public double estimatedFpr() {
+		return Math.pow(2, -fingerprintBits);
+	}
+
+	/**
+	 *
+	 * @return the number of distinct keys in the table (known exactly).
+	 */
+	public double estimatedCardinality() {
+		return size();
+	}
+}
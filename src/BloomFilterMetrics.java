@@ -0,0 +1,250 @@
+import java.math.BigInteger;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bloom filter which counts the calls to another one: the keys added, the
+ * keys probed and the probes which passed (appeared). The counters are
+ * LongAdders, so that threads adding to or probing the same filter do not
+ * wait for each other. A batch probe updates them once per batch, and a
+ * caller which adds many keys directly to the filter can count them at once
+ * with countAdds(), so that the counters are not updated once per key.
+ * The state of the table (bits set, fill ratio, estimated rate and
+ * cardinality) is read from the filter only when asked, e.g. by a JMX
+ * client.
+ *
+ * Several BloomFilterMetrics may share the same counters, e.g. the filter of
+ * server 1 and the copy received by server 2.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterMetrics implements BloomFilter, BloomFilterMetricsMBean {
+	private final BloomFilter filter;
+	private final LongAdder adds;
+	private final LongAdder probes;
+	private final LongAdder positives;
+
+	/**
+	 * @param filter
+	 *            the filter to count the calls of
+	 */
+	public BloomFilterMetrics(BloomFilter filter) {
+		this.filter = filter;
+		this.adds = new LongAdder();
+		this.probes = new LongAdder();
+		this.positives = new LongAdder();
+	}
+
+	/**
+	 * Count the calls to another filter with the counters of shared.
+	 *
+	 * @param filter
+	 *            the filter to count the calls of
+	 * @param shared
+	 *            the metrics whose counters are used
+	 */
+	public BloomFilterMetrics(BloomFilter filter, BloomFilterMetrics shared) {
+		this.filter = filter;
+		this.adds = shared.adds;
+		this.probes = shared.probes;
+		this.positives = shared.positives;
+	}
+
+	/**
+	 * @return the filter whose calls are counted.
+	 */
+	public BloomFilter filter() {
+		return filter;
+	}
+
+	public void add(String s) {
+		filter.add(s);
+		adds.increment();
+	}
+
+	public void add(byte[] buf, int off, int len) {
+		filter.add(buf, off, len);
+		adds.increment();
+	}
+
+	public boolean appears(String s) {
+		return count(filter.appears(s));
+	}
+
+	public boolean appears(byte[] buf, int off, int len) {
+		return count(filter.appears(buf, off, len));
+	}
+
+	public void appears(String[] keys, int count, long[] result) {
+		filter.appears(keys, count, result);
+		count(count, result);
+	}
+
+	public void appears(byte[] buf, int[] offsets, int[] lengths, int count, long[] result) {
+		filter.appears(buf, offsets, lengths, count, result);
+		count(count, result);
+	}
+
+	/**
+	 * Count keys added directly to the filter, e.g. by a loop which counts
+	 * its rows anyway and does not want to pay the counter per key.
+	 *
+	 * @param n
+	 *            the number of keys added
+	 */
+	public void countAdds(long n) {
+		adds.add(n);
+	}
+
+	private boolean count(boolean appears) {
+		probes.increment();
+		if (appears)
+			positives.increment();
+		return appears;
+	}
+
+	private void count(int count, long[] result) {
+		long passed = 0;
+		for (int w = 0; w < (count + 63) >>> 6; w++) {
+			passed += Long.bitCount(result[w]);
+		}
+		probes.add(count);
+		positives.add(passed);
+	}
+
+	public long filterSize() {
+		return filter.filterSize();
+	}
+
+	public long dataSize() {
+		return filter.dataSize();
+	}
+
+	public int numHashes() {
+		return filter.numHashes();
+	}
+
+	public BigInteger computeHashValue(String s, int fnv) {
+		return filter.computeHashValue(s, fnv);
+	}
+
+	public long[] computeHashValues(String s) {
+		return filter.computeHashValues(s);
+	}
+
+	/**
+	 * Merge another filter (or the filter counted by another
+	 * BloomFilterMetrics) into the filter.
+	 */
+	public void union(BloomFilter other) {
+		filter.union(other instanceof BloomFilterMetrics ? ((BloomFilterMetrics) other).filter : other);
+	}
+
+	public long bitsSet() {
+		return filter.bitsSet();
+	}
+
+	public double fillRatio() {
+		return filter.fillRatio();
+	}
+
+	public double estimatedFpr() {
+		return filter.estimatedFpr();
+	}
+
+	public double estimatedCardinality() {
+		return filter.estimatedCardinality();
+	}
+
+	/**
+	 * @return the number of keys added.
+	 */
+	public long adds() {
+		return adds.sum();
+	}
+
+	/**
+	 * @return the number of keys probed.
+	 */
+	public long probes() {
+		return probes.sum();
+	}
+
+	/**
+	 * @return the number of probed keys which appeared.
+	 */
+	public long positives() {
+		return positives.sum();
+	}
+
+	/**
+	 * @return the fraction of the probed keys which appeared, 0 before the
+	 *         first probe.
+	 */
+	public double passRate() {
+		long n = probes.sum();
+		return n == 0 ? 0 : (double) positives.sum() / n;
+	}
+
+	public String getFilterType() {
+		return filter.getClass().getName();
+	}
+
+	public long getFilterSize() {
+		return filterSize();
+	}
+
+	public long getDataSize() {
+		return dataSize();
+	}
+
+	public int getNumHashes() {
+		return numHashes();
+	}
+
+	public long getBitsSet() {
+		return bitsSet();
+	}
+
+	public double getFillRatio() {
+		return fillRatio();
+	}
+
+	public double getEstimatedFpr() {
+		return estimatedFpr();
+	}
+
+	public double getEstimatedCardinality() {
+		return estimatedCardinality();
+	}
+
+	public long getAdds() {
+		return adds();
+	}
+
+	public long getProbes() {
+		return probes();
+	}
+
+	public long getPositives() {
+		return positives();
+	}
+
+	public double getPassRate() {
+		return passRate();
+	}
+
+	/**
+	 * @return the metrics as a JSON object.
+	 */
+	public String toJson() {
+		return String.format(Locale.ROOT,
+				"{\"type\": \"%s\", \"filterSize\": %d, \"dataSize\": %d, \"numHashes\": %d, \"bitsSet\": %d, "
+						+ "\"fillRatio\": %s, \"estimatedFpr\": %s, \"estimatedCardinality\": %s, "
+						+ "\"adds\": %d, \"probes\": %d, \"positives\": %d, \"passRate\": %s}",
+				getFilterType(), filterSize(), dataSize(), numHashes(), bitsSet(), BloomJoinMetrics.number(fillRatio()),
+				BloomJoinMetrics.number(estimatedFpr()), BloomJoinMetrics.number(estimatedCardinality()), adds(),
+				probes(), positives(), BloomJoinMetrics.number(passRate()));
+	}
+}
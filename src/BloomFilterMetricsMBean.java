@@ -0,0 +1,21 @@
+/**
+ * JMX view of a BloomFilterMetrics: the counters of the calls and the state
+ * of the table of the filter.
+ *
+ * @author Yan Deng
+ *
+ */
+public interface BloomFilterMetricsMBean {
+	public String getFilterType();
+	public long getFilterSize();
+	public long getDataSize();
+	public int getNumHashes();
+	public long getBitsSet();
+	public double getFillRatio();
+	public double getEstimatedFpr();
+	public double getEstimatedCardinality();
+	public long getAdds();
+	public long getProbes();
+	public long getPositives();
+	public double getPassRate();
+}
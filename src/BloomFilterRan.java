@@ -1,10 +1,25 @@
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.BitSet;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 /**
  * Bloom Filter with random hash function.
  * 
+ * The k hash functions are drawn at random from a universal family
+ * (multiply-add-shift): the string is first hashed to a 64-bit key x (FNV64
+ * of the lower case string, xor a random key seed, then mixed), and the j-th
+ * function is h_j(x) = (a_j * x + b_j) mod 2^64, with a random odd a_j and a
+ * random b_j; the high bits of h_j(x) choose the bit of the table. Everything
+ * is computed with long arithmetic.
+ * 
+ * All the a_j, b_j and the key seed are generated from a single 64-bit seed
+ * (java.util.Random, whose sequence is the same on every JVM), so a filter is
+ * rebuilt exactly from its seed: the seed is what the serializer sends and
+ * what a mapped file stores.
+ * 
  * @author Yan Deng
  *
  */
@@ -12,27 +27,114 @@ public class BloomFilterRan implements BloomFilter{
 
 	private int setSize; // the size of S
 	private int bitsPerElement; // the number of bits per element
-	private int dataSize; // the number of elements added to the filter
+	private long dataSize; // the number of elements added to the filter
 	private int k; // the number of hash functions used
-	public BitSet checkSet; // T[h(x)]=1 if x is in S
-	private int checkSetSize;
-	private int[][] functions;
+	public BitStore checkSet; // T[h(x)]=1 if x is in S
+	private long checkSetSize;
+	private long seed; // the seed of the random functions
+	private long keySeed; // xor-ed into the 64-bit key of a string
+	private long[] a; // odd multipliers of the random functions
+	private long[] b; // increments of the random functions
+	private ByteBuffer params; // k, seed and dataSize in a mapped file, null otherwise
 
 	public BloomFilterRan(int setSize, int bitsPerElement) {
-		System.out.println("Create a new BloomFilterRan Instance.");
+		this(new HeapBitStore(nextPrime((long) setSize * bitsPerElement)),
+				BloomFilterSizing.optimalK(bitsPerElement, 1));
 		this.setSize = setSize;
 		this.bitsPerElement = bitsPerElement;
+	}
+
+	/**
+	 * Initialize a Bloom filter on a given bit storage, with random functions
+	 * from a random seed. The size of the filter is the size of the storage.
+	 * 
+	 * @param checkSet
+	 *            an empty bit storage
+	 * @param k
+	 *            the number of hash functions
+	 */
+	public BloomFilterRan(BitStore checkSet, int k) {
+		this(checkSet, k, new Random().nextLong());
+	}
+
+	/**
+	 * Initialize a Bloom filter on a given bit storage, with the random
+	 * functions of the given seed: two filters with the same seed, k and size
+	 * compute the same hash values.
+	 * 
+	 * @param checkSet
+	 *            an empty bit storage
+	 * @param k
+	 *            the number of hash functions
+	 * @param seed
+	 *            the seed of the random functions
+	 */
+	public BloomFilterRan(BitStore checkSet, int k, long seed) {
+		System.out.println("Create a new BloomFilterRan Instance.");
 		this.dataSize = 0;
-		this.k = (int) (Math.log(2) * bitsPerElement);
-		this.checkSetSize = nextPrime(setSize * bitsPerElement);
-		this.checkSet = new BitSet(checkSetSize);
-		this.functions = new int[k][2];
-		for (int i = 1; i < k; i++) {
-			functions[i][0] = generateRan(); // Generate a;
-			functions[i][1] = generateRan(); // Generate b;
-			System.out.println("a= " + functions[i][0] + " b= " + functions[i][1]);
+		this.k = k;
+		this.checkSetSize = checkSet.size();
+		this.checkSet = checkSet;
+		this.seed = seed;
+		Random rand = new Random(seed);
+		this.keySeed = rand.nextLong();
+		this.a = new long[k];
+		this.b = new long[k];
+		for (int i = 0; i < k; i++) {
+			a[i] = rand.nextLong() | 1L; // Generate an odd a;
+			b[i] = rand.nextLong(); // Generate b;
 		}
-		// System.out.println("Created a new BloomFilterRan Instance.");
+	}
+
+	/**
+	 * Initialize a Bloom filter on a bit storage which already stores data,
+	 * with the seed of the random functions used to build it.
+	 * 
+	 * @param checkSet
+	 * @param k
+	 * @param seed
+	 *            the seed of the random functions
+	 * @param dataSize
+	 *            the number of elements added to the storage
+	 */
+	BloomFilterRan(BitStore checkSet, int k, long seed, long dataSize) {
+		this(checkSet, k, seed);
+		this.dataSize = dataSize;
+	}
+
+	/**
+	 * Create a Bloom filter in a memory-mapped file, it can be reopened by
+	 * open() without adding the data again. The seed of the random functions
+	 * is stored in the file.
+	 * 
+	 * @param file
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @return a new empty filter
+	 * @throws IOException
+	 */
+	public static BloomFilterRan create(File file, long setSize, int bitsPerElement) throws IOException {
+		MappedBitStore store = MappedBitStore.create(file, nextPrime(setSize * bitsPerElement), 24);
+		BloomFilterRan bf = new BloomFilterRan(store, BloomFilterSizing.optimalK(bitsPerElement, 1));
+		bf.params = store.params();
+		bf.params.putInt(0, bf.k);
+		bf.params.putLong(8, bf.seed);
+		return bf;
+	}
+
+	/**
+	 * Reopen a Bloom filter created by create().
+	 * 
+	 * @param file
+	 * @return the filter stored in the file
+	 * @throws IOException
+	 */
+	public static BloomFilterRan open(File file) throws IOException {
+		MappedBitStore store = MappedBitStore.open(file);
+		ByteBuffer params = store.params();
+		BloomFilterRan bf = new BloomFilterRan(store, params.getInt(0), params.getLong(8), params.getLong(16));
+		bf.params = params;
+		return bf;
 	}
 
 	/**
@@ -43,10 +145,34 @@ public class BloomFilterRan implements BloomFilter{
 	 */
 	public void add(String s) {
 		s = s.toLowerCase();
-		int[] hs = computeHashValues(s);
-		for (int h : hs) {
-			checkSet.set(h);
+		addKey(FnvHash.fnv64(s));
+	}
+
+	/**
+	 * Adds the string of the UTF-8 bytes buf[off, off+len), the same as
+	 * add(String) but without creating any String: ASCII letters are turned
+	 * to lower case while hashing. Other bytes go through add(String).
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void add(byte[] buf, int off, int len) {
+		if (!FnvHash.isAscii(buf, off, len)) {
+			add(new String(buf, off, len, StandardCharsets.UTF_8));
+			return;
 		}
+		addKey(FnvHash.fnv64Lower(buf, off, len));
+	}
+
+	private void addKey(long fnv64) {
+		long x = key(fnv64);
+		for (int i = 0; i < k; i++) {
+			checkSet.set(index(x, i));
+		}
+		this.dataSize++;
+		if (params != null)
+			params.putLong(16, dataSize);
 	}
 
 	/**
@@ -59,23 +185,46 @@ public class BloomFilterRan implements BloomFilter{
 	 */
 	public boolean appears(String s) {
 		s = s.toLowerCase();
-		if (s.length() == 0 || s == null) {
+		if (s.length() == 0) {
 			throw new IllegalArgumentException("Querry string should not be empty.");
-		} else {
-			int[] hs = computeHashValues(s);
-			for (int h : hs) {
-				if (!checkSet.get(h))
-					return false;
-			}
-			return true;
 		}
+		return appearsKey(FnvHash.fnv64(s));
+	}
+
+	/**
+	 * Returns true if the string of the UTF-8 bytes buf[off, off+len) appears
+	 * in the filter, the same as appears(String) but without creating any
+	 * String.
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the string appears in the filter false otherwise
+	 */
+	public boolean appears(byte[] buf, int off, int len) {
+		if (len == 0) {
+			throw new IllegalArgumentException("Querry string should not be empty.");
+		}
+		if (!FnvHash.isAscii(buf, off, len)) {
+			return appears(new String(buf, off, len, StandardCharsets.UTF_8));
+		}
+		return appearsKey(FnvHash.fnv64Lower(buf, off, len));
+	}
+
+	private boolean appearsKey(long fnv64) {
+		long x = key(fnv64);
+		for (int i = 0; i < k; i++) {
+			if (!checkSet.get(index(x, i)))
+				return false;
+		}
+		return true;
 	}
 
 	/**
 	 * 
 	 * @return the size of the filter table.
 	 */
-	public int filterSize() {
+	public long filterSize() {
 		return this.checkSetSize;
 	}
 
@@ -83,7 +232,7 @@ public class BloomFilterRan implements BloomFilter{
 	 * 
 	 * @return the number of elements added to the filter.
 	 */
-	public int dataSize() {
+	public long dataSize() {
 		return this.dataSize;
 	}
 
@@ -95,56 +244,100 @@ public class BloomFilterRan implements BloomFilter{
 		return this.k;
 	}
 
+	/**
+	 * 
+	 * @return the number of bits of the table which are set.
+	 */
+	public long bitsSet() {
+		return checkSet.cardinality();
+	}
+
+	/**
+	 * Merge another random filter of the same size, built with the same seed,
+	 * into this one. The data size becomes the sum of the two data sizes.
+	 * 
+	 * @param other
+	 */
+	public void union(BloomFilter other) {
+		if (!(other instanceof BloomFilterRan)) {
+			throw new IllegalArgumentException("Can not merge a " + other.getClass().getName() + " into a BloomFilterRan.");
+		}
+		BloomFilterRan ran = (BloomFilterRan) other;
+		if (seed != ran.seed || k != ran.k) {
+			throw new IllegalArgumentException("Can not merge filters with different random functions.");
+		}
+		checkSet.or(ran.checkSet);
+		this.dataSize += ran.dataSize;
+		if (params != null)
+			params.putLong(16, dataSize);
+	}
+
 	/**
 	 * Compute one hash value of given string.
 	 * 
 	 * @param s
 	 *            given string
 	 * @param j
-	 *            jth hash value for the given string （j is in range [1,...,k]）
-	 * @return a hahs value of given string in BigInteger type
+	 *            jth hash value for the given string （j is in range [0,...,k-1]）
+	 * @return the index in the table of the jth hash function, in BigInteger
+	 *         type
 	 */
 	public BigInteger computeHashValue(String s, int j) {
-		long h=0;
-		long dominator=(long) Math.pow(2, 32);
-		for (int i = 0; i < s.length(); i++) {
-			//h=a_j*h+b_j+s.charAt(i); 
-			h=(h*functions[j][0]+functions[j][1]+s.charAt(i));
-			h=h%dominator;
+		if (j < 0 || j >= k) {
+			throw new IllegalArgumentException("The hash function should be in range [0, " + (k - 1) + "].");
 		}
-		return BigInteger.valueOf(h);
+		return BigInteger.valueOf(index(key(FnvHash.fnv64(s)), j));
 	}
 
 	/**
-	 * Compute K different hash values for given string using a,b values stored
-	 * in functions[][].
+	 * Compute K different hash values for given string using the a, b values
+	 * of the random functions.
 	 * 
 	 * @param s
 	 *            given string
 	 * @return an array stored the K hash values
 	 */
-	public int[] computeHashValues(String s) {
-		int[] hs = new int[k];
-		BigInteger h;
+	public long[] computeHashValues(String s) {
+		long[] hs = new long[k];
+		long x = key(FnvHash.fnv64(s));
 		for (int i = 0; i < k; i++) {
-			h=computeHashValue(s,i);
-			h = h.mod(BigInteger.valueOf(checkSetSize));
-			hs[i] = h.intValue();
+			hs[i] = index(x, i);
 		}
 		return hs;
-
 	}
 
 	/**
-	 * Generate a random integer between[1,...,p-1] for the random function's a and
-	 * b.
 	 * 
-	 * @return a random generated integer between[1,...,p-1];
+	 * @return the seed of the random functions.
+	 */
+	long seed() {
+		return this.seed;
+	}
+
+	/**
+	 * The 64-bit key of a string: its FNV64 xor the key seed, mixed (the
+	 * finalizer of MurmurHash3) so that every bit of x depends on every bit of
+	 * the FNV64.
+	 */
+	private long key(long fnv64) {
+		long x = fnv64 ^ keySeed;
+		x ^= x >>> 33;
+		x *= 0xff51afd7ed558ccdL;
+		x ^= x >>> 33;
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= x >>> 33;
+		return x;
+	}
+
+	/**
+	 * The jth random function of a key: h = a_j * x + b_j (mod 2^64), reduced
+	 * to [0, checkSetSize) by the high 64 bits of h * checkSetSize, i.e. the
+	 * high bits of h, which are the well mixed bits of a multiply-shift hash.
 	 */
-	private int generateRan() {
-		Random rand = new Random();
-		int par = rand.nextInt(checkSetSize - 1) + 1;
-		return par;
+	private long index(long x, int j) {
+		long h = a[j] * x + b[j];
+		// unsigned high product, checkSetSize is positive
+		return Math.multiplyHigh(h, checkSetSize) + ((h >> 63) & checkSetSize);
 	}
 
 	/**
@@ -153,12 +346,12 @@ public class BloomFilterRan implements BloomFilter{
 	 * @param num
 	 * @return true: is a prime; false: else.
 	 */
-	private static boolean isPrime(int num) {
+	private static boolean isPrime(long num) {
 		if (num == 2)
 			return true;
 		if (num % 2 == 0)
 			return false;
-		for (int i = 3; i * i <= num; i += 2)
+		for (long i = 3; i * i <= num; i += 2)
 			if (num % i == 0)
 				return false;
 		return true;
@@ -170,8 +363,8 @@ public class BloomFilterRan implements BloomFilter{
 	 * @param num
 	 * @return a prime number
 	 */
-	private static int nextPrime(int num) {
-		int nextPrime = num;
+	private static long nextPrime(long num) {
+		long nextPrime = num;
 		if (nextPrime % 2 == 0)
 			nextPrime += 1;
 
@@ -0,0 +1,375 @@
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scalable Bloom Filter. It is a chain of deterministic sub-filters; when the
+ * last sub-filter is full (its data size reaches its capacity), a new
+ * sub-filter with twice the capacity and half the false positive rate is
+ * added. The false positive rate of the whole chain stays below the target
+ * rate p: the sub-filter of level i uses p*(1-r)*r^i with r=1/2, the levels
+ * of a chain are distinct, and the sum of these rates is below p.
+ *
+ * Each sub-filter keeps its level, and the next sub-filter takes the level
+ * after the last one. union() merges the sub-filters of the same level,
+ * copies a level which this chain does not have, and rejects a merge whose
+ * keys do not fit in the sub-filters of a level, which would exceed the
+ * target rate.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterScalable implements BloomFilter {
+	private static final int GROWTH = 2; // capacity of the next sub-filter
+	private static final double TIGHTENING = 0.5; // false positive rate of the next sub-filter
+
+	private final double fpr; // target false positive rate of the whole chain
+	private final long initialCapacity; // capacity of the first sub-filter
+	private final List<BloomFilterDet> filters = new ArrayList<BloomFilterDet>();
+	private final List<Integer> levels = new ArrayList<Integer>(); // level of each sub-filter, increasing
+
+	/**
+	 * Initialize a scalable Bloom filter with a first sub-filter for setSize
+	 * elements and the false positive rate of a standard filter with
+	 * bitsPerElement bits per element (0.6185^bitsPerElement).
+	 *
+	 * @param setSize
+	 *            the expected size of S, more elements can be added
+	 * @param bitsPerElement
+	 */
+	public BloomFilterScalable(int setSize, int bitsPerElement) {
+		this(setSize, Math.pow(0.6185, bitsPerElement));
+	}
+
+	/**
+	 * Initialize a scalable Bloom filter with a given target false positive
+	 * rate.
+	 *
+	 * @param initialCapacity
+	 *            the capacity of the first sub-filter
+	 * @param fpr
+	 *            the target false positive rate, in (0, 1)
+	 */
+	public BloomFilterScalable(long initialCapacity, double fpr) {
+		System.out.println("Create a new BloomFilterScalable instance.");
+		if (initialCapacity <= 0 || fpr <= 0 || fpr >= 1) {
+			throw new IllegalArgumentException("The capacity should be positive and the false positive rate in (0, 1).");
+		}
+		this.fpr = fpr;
+		this.initialCapacity = initialCapacity;
+		addSubFilter();
+	}
+
+	/**
+	 * Initialize a scalable Bloom filter with sub-filters which already store
+	 * data, e.g. a filter received from another server.
+	 *
+	 * @param initialCapacity
+	 * @param fpr
+	 * @param filters
+	 *            the sub-filters, in the order of the chain
+	 * @param levels
+	 *            the level of each sub-filter, increasing
+	 */
+	BloomFilterScalable(long initialCapacity, double fpr, List<BloomFilterDet> filters, List<Integer> levels) {
+		if (filters.isEmpty() || filters.size() != levels.size()) {
+			throw new IllegalArgumentException("Each sub-filter should have a level.");
+		}
+		for (int i = 0; i < levels.size(); i++) {
+			if (levels.get(i) < 0 || (i > 0 && levels.get(i) <= levels.get(i - 1))) {
+				throw new IllegalArgumentException("The levels of the sub-filters should be increasing.");
+			}
+		}
+		this.fpr = fpr;
+		this.initialCapacity = initialCapacity;
+		this.filters.addAll(filters);
+		this.levels.addAll(levels);
+	}
+
+	/**
+	 * Add a new empty sub-filter at the end of the chain, with the level after
+	 * the last one.
+	 */
+	private void addSubFilter() {
+		int level = levels.isEmpty() ? 0 : levels.get(levels.size() - 1) + 1;
+		BloomFilterSizing sizing = BloomFilterSizing.forFpr(capacityOf(level), fprOf(level));
+		filters.add(new BloomFilterDet(new HeapBitStore(BloomFilterDet.nextPrime(sizing.bits())), sizing.k()));
+		levels.add(level);
+	}
+
+	/**
+	 * @return the capacity of the sub-filter of a level.
+	 */
+	long capacityOf(int level) {
+		long c = initialCapacity;
+		for (int j = 0; j < level; j++) {
+			c *= GROWTH;
+		}
+		return c;
+	}
+
+	/**
+	 * @return the false positive rate of the sub-filter of a level.
+	 */
+	double fprOf(int level) {
+		return fpr * (1 - TIGHTENING) * Math.pow(TIGHTENING, level);
+	}
+
+	/**
+	 * @return true if the last sub-filter holds as many elements as its
+	 *         capacity.
+	 */
+	private boolean lastIsFull() {
+		return last().dataSize() >= capacityOf(levels.get(levels.size() - 1));
+	}
+
+	/**
+	 * Adds the string s to the last sub-filter, a new sub-filter is added first
+	 * if the last one is full. This method is case-insensitive.
+	 *
+	 * @param s
+	 *            The input string
+	 */
+	public void add(String s) {
+		if (lastIsFull()) {
+			addSubFilter();
+		}
+		last().add(s);
+	}
+
+	/**
+	 * Adds the string of the UTF-8 bytes buf[off, off+len) to the last
+	 * sub-filter, without creating any String.
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void add(byte[] buf, int off, int len) {
+		if (lastIsFull()) {
+			addSubFilter();
+		}
+		last().add(buf, off, len);
+	}
+
+	/**
+	 * Returns true if s appears in any sub-filter; otherwise returns false.
+	 * This method is also case-insensitive.
+	 *
+	 * @param s
+	 *            The query String
+	 * @return true if s appears in the filter false otherwise
+	 */
+	public boolean appears(String s) {
+		for (int i = filters.size() - 1; i >= 0; i--) {
+			if (filters.get(i).appears(s))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns true if the string of the UTF-8 bytes buf[off, off+len) appears
+	 * in any sub-filter, without creating any String.
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the string appears in the filter false otherwise
+	 */
+	public boolean appears(byte[] buf, int off, int len) {
+		for (int i = filters.size() - 1; i >= 0; i--) {
+			if (filters.get(i).appears(buf, off, len))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 *
+	 * @return the total size of the sub-filters.
+	 */
+	public long filterSize() {
+		long size = 0;
+		for (BloomFilterDet filter : filters) {
+			size += filter.filterSize();
+		}
+		return size;
+	}
+
+	/**
+	 *
+	 * @return the number of elements added to the filter.
+	 */
+	public long dataSize() {
+		long size = 0;
+		for (BloomFilterDet filter : filters) {
+			size += filter.dataSize();
+		}
+		return size;
+	}
+
+	/**
+	 *
+	 * @return the number of hash functions of all the sub-filters, i.e. the
+	 *         number of bits checked for a string which does not appear.
+	 */
+	public int numHashes() {
+		int k = 0;
+		for (BloomFilterDet filter : filters) {
+			k += filter.numHashes();
+		}
+		return k;
+	}
+
+	/**
+	 *
+	 * @return the number of bits set in all the sub-filters.
+	 */
+	public long bitsSet() {
+		long count = 0;
+		for (BloomFilterDet filter : filters) {
+			count += filter.bitsSet();
+		}
+		return count;
+	}
+
+	/**
+	 * A string appears if it appears in any sub-filter:
+	 * 1 - (1-fpr_1)(1-fpr_2)...(1-fpr_n), with the estimated rate of each.
+	 */
+	public double estimatedFpr() {
+		double none = 1;
+		for (BloomFilterDet filter : filters) {
+			none *= 1 - filter.estimatedFpr();
+		}
+		return 1 - none;
+	}
+
+	/**
+	 * The sum of the estimates of the sub-filters, which hold different keys.
+	 */
+	public double estimatedCardinality() {
+		double count = 0;
+		for (BloomFilterDet filter : filters) {
+			count += filter.estimatedCardinality();
+		}
+		return count;
+	}
+
+	/**
+	 *
+	 * @return the target false positive rate.
+	 */
+	public double targetFpr() {
+		return fpr;
+	}
+
+	/**
+	 *
+	 * @return the capacity of the first sub-filter.
+	 */
+	public long initialCapacity() {
+		return initialCapacity;
+	}
+
+	/**
+	 *
+	 * @return the sub-filters, in the order they were created.
+	 */
+	List<BloomFilterDet> subFilters() {
+		return filters;
+	}
+
+	/**
+	 * Merge another scalable filter with the same target rate and initial
+	 * capacity into this one. Each sub-filter of the other chain is merged
+	 * into the sub-filter of the same level (the same size and rate), or
+	 * copied if this chain has no sub-filter of that level.
+	 *
+	 * @param other
+	 * @throws IllegalArgumentException
+	 *             if the keys of a level do not fit in its capacity, the
+	 *             filter is not changed then (see fits())
+	 */
+	public void union(BloomFilter other) {
+		if (!(other instanceof BloomFilterScalable)) {
+			throw new IllegalArgumentException("Can not merge a " + other.getClass().getName() + " into a BloomFilterScalable.");
+		}
+		BloomFilterScalable scalable = (BloomFilterScalable) other;
+		if (!fits(scalable)) {
+			throw new IllegalArgumentException(
+					"The keys of the scalable filters do not fit in the capacity of their sub-filters.");
+		}
+		for (int i = 0; i < scalable.filters.size(); i++) {
+			BloomFilterDet sub = scalable.filters.get(i);
+			int level = scalable.levels.get(i);
+			int j = levels.indexOf(level);
+			if (j < 0) {
+				j = 0;
+				while (j < levels.size() && levels.get(j) < level) {
+					j++;
+				}
+				filters.add(j, new BloomFilterDet(new HeapBitStore(sub.filterSize()), sub.numHashes()));
+				levels.add(j, level);
+			}
+			filters.get(j).union(sub);
+		}
+	}
+
+	/**
+	 * @param other
+	 * @return true if other has the same parameters, and the keys of each of
+	 *         its levels fit in the sub-filter of this chain with the same
+	 *         level, so that union() keeps the target rate.
+	 */
+	public boolean fits(BloomFilterScalable other) {
+		if (other.fpr != fpr || other.initialCapacity != initialCapacity) {
+			throw new IllegalArgumentException("Can not merge scalable filters with different parameters.");
+		}
+		for (int i = 0; i < other.filters.size(); i++) {
+			int j = levels.indexOf(other.levels.get(i));
+			if (j >= 0 && filters.get(j).dataSize() + other.filters.get(i).dataSize() > capacityOf(levels.get(j)))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 *
+	 * @return the level of each sub-filter, in the order of the chain.
+	 */
+	List<Integer> levels() {
+		return levels;
+	}
+
+	/**
+	 * Compute the hash value of given string using FNV method, the same as
+	 * BloomFilterDet.
+	 *
+	 * @param s
+	 *            given string
+	 * @param fnv
+	 *            32: using FNV32; 64: using FNV64
+	 * @return hash value in BigInteger type
+	 */
+	public BigInteger computeHashValue(String s, int fnv) {
+		return last().computeHashValue(s, fnv);
+	}
+
+	/**
+	 * Compute the hash values of given string in the last sub-filter, where
+	 * it would be added.
+	 *
+	 * @param s
+	 *            given string
+	 * @return an array stored the hash values
+	 */
+	public long[] computeHashValues(String s) {
+		return last().computeHashValues(s);
+	}
+
+	private BloomFilterDet last() {
+		return filters.get(filters.size() - 1);
+	}
+}
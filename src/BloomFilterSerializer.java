@@ -0,0 +1,438 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary format to send a bloom filter from server 1 to server 2.
+ *
+ * Layout (little endian):
+ * magic (int), version (byte), hash family (byte), flags (byte), reserved
+ * (byte), k (int), number of parameters (int), filter size in bits (long),
+ * data size (long), parameters (int each), then the words of the filter (long
+ * each). If the COMPRESSED flag is set, the words are deflated and written
+ * as chunks of at most 64 KB, each preceded by its length (int), and a chunk
+ * of length 0 ends them, so that the deflated words are never held in memory
+ * as a whole (a filter can be larger than 2 GB) and a reader never reads past
+ * the end of the filter.
+ *
+ * A counting filter is written as the equivalent BloomFilterDet (a bit is set
+ * if its counter is not 0), which is all server 2 needs.
+ *
+ * The parameters are the 64-bit seed of BloomFilterRan (high int first), from
+ * which it derives its random functions. A scalable filter has the initial
+ * capacity, the target rate and the level of each sub-filter as
+ * parameters, k is its number of sub-filters, and the sub-filters follow
+ * instead of the words. The words of a binary
+ * fuse or cuckoo filter are its packed fingerprints; the parameters are the
+ * fingerprint size and the seed, then the number of distinct keys (fuse) or
+ * the bucket and fingerprint of the victim (cuckoo).
+ *
+ * The words of an off-heap or mapped filter are written to the channel
+ * directly from their buffers, without being copied to the java heap.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterSerializer {
+	public static final int MAGIC = 0x424c4d53; // "BLMS"
+	public static final byte VERSION = 5; // 3: BloomFilterRan sends its seed; 4: deflated words in chunks;
+											// 5: scalable sub-filters send their level
+
+	public static final byte FAMILY_DET = 1; // BloomFilterDet, FNV hash functions
+	public static final byte FAMILY_RAN = 2; // BloomFilterRan, random hash functions
+	public static final byte FAMILY_BLOCKED = 3; // BloomFilterBlocked
+	public static final byte FAMILY_SCALABLE = 4; // BloomFilterScalable, a chain of det filters
+	public static final byte FAMILY_FUSE = 5; // BloomFilterFuse, a table of fingerprints
+	public static final byte FAMILY_CUCKOO = 6; // BloomFilterCuckoo, buckets of fingerprints
+
+	public static final byte COMPRESSED = 1; // flag: the words are deflated
+
+	private static final int HEADER = 32; // fixed part of the header
+	private static final int BUFFER = 1 << 16; // bytes copied per write for heap filters
+
+	private BloomFilterSerializer() {
+	}
+
+	/**
+	 * Write a bloom filter to a channel.
+	 *
+	 * @param bf
+	 *            the bloom filter
+	 * @param channel
+	 *            destination channel
+	 * @param compress
+	 *            true: deflate the words, useful for sparse filters
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public static long write(BloomFilter bf, WritableByteChannel channel, boolean compress) throws IOException {
+		if (bf instanceof BloomFilterCounting) {
+			bf = ((BloomFilterCounting) bf).toBloomFilterDet();
+		}
+		byte family;
+		BitStore store = null;
+		int k = bf.numHashes();
+		int[] params = new int[0];
+		if (bf instanceof BloomFilterDet) {
+			family = FAMILY_DET;
+			store = ((BloomFilterDet) bf).bitStore;
+		} else if (bf instanceof BloomFilterConcurrent) {
+			family = FAMILY_DET; // same table and hash values as BloomFilterDet
+			store = ((BloomFilterConcurrent) bf).bitStore;
+		} else if (bf instanceof BloomFilterRan) {
+			family = FAMILY_RAN;
+			store = ((BloomFilterRan) bf).checkSet;
+			long seed = ((BloomFilterRan) bf).seed();
+			params = new int[] { (int) (seed >>> 32), (int) seed };
+		} else if (bf instanceof BloomFilterBlocked) {
+			family = FAMILY_BLOCKED;
+			store = ((BloomFilterBlocked) bf).bitStore;
+		} else if (bf instanceof BloomFilterFuse) {
+			family = FAMILY_FUSE;
+			BloomFilterFuse fuse = (BloomFilterFuse) bf;
+			long seed = fuse.seed(); // builds the table
+			store = fuse.table;
+			params = new int[] { fuse.fingerprintBits(), (int) (seed >>> 32), (int) seed, (int) (fuse.size() >>> 32),
+					(int) fuse.size() };
+		} else if (bf instanceof BloomFilterCuckoo) {
+			family = FAMILY_CUCKOO;
+			BloomFilterCuckoo cuckoo = (BloomFilterCuckoo) bf;
+			store = cuckoo.table;
+			long seed = cuckoo.seed();
+			params = new int[] { cuckoo.fingerprintBits(), (int) (seed >>> 32), (int) seed,
+					(int) (cuckoo.victimBucket() >>> 32), (int) cuckoo.victimBucket(), (int) cuckoo.victim() };
+		} else if (bf instanceof BloomFilterScalable) {
+			family = FAMILY_SCALABLE;
+			BloomFilterScalable scalable = (BloomFilterScalable) bf;
+			k = scalable.subFilters().size();
+			long fprBits = Double.doubleToLongBits(scalable.targetFpr());
+			params = new int[4 + k];
+			params[0] = (int) (scalable.initialCapacity() >>> 32);
+			params[1] = (int) scalable.initialCapacity();
+			params[2] = (int) (fprBits >>> 32);
+			params[3] = (int) fprBits;
+			for (int i = 0; i < k; i++) {
+				params[4 + i] = scalable.levels().get(i);
+			}
+		} else {
+			throw new IllegalArgumentException("Can not serialize a " + bf.getClass().getName() + ".");
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER + 4 * params.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).put(VERSION).put(family).put(compress ? COMPRESSED : 0).put((byte) 0);
+		header.putInt(k).putInt(params.length).putLong(bf.filterSize()).putLong(bf.dataSize());
+		for (int param : params) {
+			header.putInt(param);
+		}
+		header.flip();
+		long bytes = writeFully(channel, header);
+
+		if (store == null) {
+			for (BloomFilterDet filter : ((BloomFilterScalable) bf).subFilters()) {
+				bytes += write(filter, channel, compress);
+			}
+		} else if (compress) {
+			ChunkedOutputStream chunks = new ChunkedOutputStream(channel);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			DeflaterOutputStream out = new DeflaterOutputStream(chunks, deflater, BUFFER);
+			writeWords(store, Channels.newChannel(out));
+			out.close();
+			deflater.end();
+			bytes += chunks.bytes;
+		} else {
+			bytes += writeWords(store, channel);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Read a bloom filter written by write(). The filter is stored on the
+	 * heap if it fits, off the heap otherwise.
+	 *
+	 * @param channel
+	 *            source channel
+	 * @return the bloom filter
+	 * @throws IOException
+	 */
+	public static BloomFilter read(ReadableByteChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header);
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Not a serialized bloom filter.");
+		}
+		byte version = header.get();
+		if (version != VERSION) {
+			throw new IOException("Unsupported bloom filter format version " + version + ".");
+		}
+		byte family = header.get();
+		byte flags = header.get();
+		header.get();
+		int k = header.getInt();
+		int paramCount = header.getInt();
+		if (paramCount < 0 || paramCount > BUFFER) {
+			throw new IOException("Corrupt serialized bloom filter: " + paramCount + " parameters.");
+		}
+		int[] params = new int[paramCount];
+		long filterSize = header.getLong();
+		long dataSize = header.getLong();
+		if (params.length > 0) {
+			ByteBuffer paramBuffer = ByteBuffer.allocate(4 * params.length).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, paramBuffer);
+			paramBuffer.flip();
+			for (int i = 0; i < params.length; i++) {
+				params[i] = paramBuffer.getInt();
+			}
+		}
+
+		if (family == FAMILY_SCALABLE) {
+			if (params.length != 4 + k) {
+				throw new IOException("Corrupt serialized scalable filter: " + params.length + " parameters for " + k
+						+ " sub-filters.");
+			}
+			List<BloomFilterDet> filters = new ArrayList<BloomFilterDet>();
+			for (int i = 0; i < k; i++) {
+				BloomFilter sub = read(channel);
+				if (!(sub instanceof BloomFilterDet)) {
+					throw new IOException("Corrupt serialized scalable filter: a sub-filter is a "
+							+ sub.getClass().getName() + ".");
+				}
+				filters.add((BloomFilterDet) sub);
+			}
+			long initialCapacity = ((long) params[0] << 32) | (params[1] & 0xffffffffL);
+			double fpr = Double.longBitsToDouble(((long) params[2] << 32) | (params[3] & 0xffffffffL));
+			List<Integer> levels = new ArrayList<Integer>();
+			for (int i = 0; i < k; i++) {
+				levels.add(params[4 + i]);
+			}
+			try {
+				return new BloomFilterScalable(initialCapacity, fpr, filters, levels);
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Corrupt serialized scalable filter: " + ex.getMessage(), ex);
+			}
+		}
+
+		long numWords = (filterSize + 63) >>> 6;
+		BitStore store = numWords < Integer.MAX_VALUE - 8 ? new HeapBitStore(filterSize) : new OffHeapBitStore(filterSize);
+		if ((flags & COMPRESSED) != 0) {
+			ChunkedInputStream chunks = new ChunkedInputStream(channel);
+			Inflater inflater = new Inflater();
+			readWords(store, Channels.newChannel(new InflaterInputStream(chunks, inflater, BUFFER)));
+			inflater.end();
+			chunks.skipToEnd();
+		} else {
+			readWords(store, channel);
+		}
+
+		switch (family) {
+		case FAMILY_DET:
+			return new BloomFilterDet(store, k, dataSize);
+		case FAMILY_RAN:
+			long seed = ((long) params[0] << 32) | (params[1] & 0xffffffffL);
+			return new BloomFilterRan(store, k, seed, dataSize);
+		case FAMILY_BLOCKED:
+			return new BloomFilterBlocked(store, k, dataSize);
+		case FAMILY_FUSE:
+			return new BloomFilterFuse(store, params[0], ((long) params[1] << 32) | (params[2] & 0xffffffffL),
+					((long) params[3] << 32) | (params[4] & 0xffffffffL), dataSize);
+		case FAMILY_CUCKOO:
+			return new BloomFilterCuckoo(store, params[0], ((long) params[1] << 32) | (params[2] & 0xffffffffL), dataSize,
+					((long) params[3] << 32) | (params[4] & 0xffffffffL), params[5] & 0xffffffffL);
+		default:
+			throw new IOException("Unknown hash family " + family + ".");
+		}
+	}
+
+	/**
+	 * Write the words of a bit storage. The buffers of an off-heap or mapped
+	 * storage are written directly.
+	 */
+	private static long writeWords(BitStore store, WritableByteChannel channel) throws IOException {
+		long bytes = 0;
+		if (store instanceof BufferBitStore) {
+			for (ByteBuffer chunk : ((BufferBitStore) store).chunks) {
+				bytes += writeFully(channel, chunk.duplicate());
+			}
+			return bytes;
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+		for (long i = 0; i < store.numWords(); i++) {
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				bytes += writeFully(channel, buffer);
+				buffer.clear();
+			}
+			buffer.putLong(store.getWord(i));
+		}
+		buffer.flip();
+		bytes += writeFully(channel, buffer);
+		return bytes;
+	}
+
+	/**
+	 * Read the words of a bit storage. The buffers of an off-heap or mapped
+	 * storage are filled directly.
+	 */
+	private static void readWords(BitStore store, ReadableByteChannel channel) throws IOException {
+		if (store instanceof BufferBitStore) {
+			for (ByteBuffer chunk : ((BufferBitStore) store).chunks) {
+				readFully(channel, chunk.duplicate());
+			}
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+		long i = 0;
+		while (i < store.numWords()) {
+			buffer.clear();
+			buffer.limit((int) Math.min(BUFFER, (store.numWords() - i) << 3));
+			readFully(channel, buffer);
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				store.setWord(i++, buffer.getLong());
+			}
+		}
+	}
+
+	/**
+	 * Writes the bytes to a channel as chunks of at most BUFFER bytes, each
+	 * preceded by its length (int); close() writes the chunk of length 0
+	 * which ends them. The channel is not closed.
+	 */
+	private static class ChunkedOutputStream extends OutputStream {
+		private final WritableByteChannel channel;
+		private final ByteBuffer chunk = ByteBuffer.allocate(4 + BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+		long bytes = 0; // bytes written to the channel
+
+		ChunkedOutputStream(WritableByteChannel channel) {
+			this.channel = channel;
+			chunk.position(4);
+		}
+
+		public void write(int b) throws IOException {
+			if (!chunk.hasRemaining())
+				flushChunk();
+			chunk.put((byte) b);
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException {
+			while (len > 0) {
+				if (!chunk.hasRemaining())
+					flushChunk();
+				int n = Math.min(len, chunk.remaining());
+				chunk.put(buf, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (chunk.position() == 4)
+				return;
+			chunk.putInt(0, chunk.position() - 4).flip();
+			bytes += writeFully(channel, chunk);
+			chunk.clear();
+			chunk.position(4);
+		}
+
+		public void close() throws IOException {
+			flushChunk();
+			chunk.clear();
+			chunk.putInt(0).flip();
+			bytes += writeFully(channel, chunk);
+		}
+	}
+
+	/**
+	 * Reads the chunks written by a ChunkedOutputStream, up to the chunk of
+	 * length 0 and not further. A chunk length which is negative or larger
+	 * than BUFFER is reported as an IOException.
+	 */
+	private static class ChunkedInputStream extends InputStream {
+		private final ReadableByteChannel channel;
+		private final ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		private final ByteBuffer chunk = ByteBuffer.allocate(BUFFER);
+		private boolean end = false;
+
+		ChunkedInputStream(ReadableByteChannel channel) {
+			this.channel = channel;
+			chunk.limit(0);
+		}
+
+		public int read() throws IOException {
+			if (!nextChunk())
+				return -1;
+			return chunk.get() & 0xff;
+		}
+
+		public int read(byte[] buf, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextChunk())
+				return -1;
+			int n = Math.min(len, chunk.remaining());
+			chunk.get(buf, off, n);
+			return n;
+		}
+
+		/**
+		 * @return false at the end of the chunks, true if the current chunk
+		 *         has bytes left.
+		 */
+		private boolean nextChunk() throws IOException {
+			while (!chunk.hasRemaining() && !end) {
+				length.clear();
+				readFully(channel, length);
+				int n = length.getInt(0);
+				if (n < 0 || n > BUFFER) {
+					throw new IOException("Corrupt serialized bloom filter: chunk length " + n + ".");
+				}
+				if (n == 0) {
+					end = true;
+				} else {
+					chunk.clear().limit(n);
+					readFully(channel, chunk);
+					chunk.flip();
+				}
+			}
+			return chunk.hasRemaining();
+		}
+
+		/**
+		 * Read the chunks left, e.g. after the inflater found the end of the
+		 * deflated data, so that the channel is at the end of the filter.
+		 */
+		void skipToEnd() throws IOException {
+			while (nextChunk()) {
+				chunk.position(chunk.limit());
+			}
+		}
+	}
+
+	private static long writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		long bytes = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		return bytes;
+	}
+
+	private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Unexpected end of the serialized bloom filter.");
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * The size m (bits) and number of hash functions k of a bloom filter for n
+ * elements, chosen from a target false positive rate, a memory budget or a
+ * number of bits per element. The rate of a standard filter is
+ * (1-e^(-kn/m))^k; for a given m it is the lowest for k = m/n*ln2, and for a
+ * target rate p the smallest m is about -n*ln(p)/ln(2)^2.
+ *
+ * k is the better of the two integers around m/n*ln2, instead of the
+ * truncated value (e.g. 7 and not 6 hash functions for 10 bits per element).
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomFilterSizing {
+	private static final double LN2 = Math.log(2);
+
+	private final long setSize; // n
+	private final long bits; // m
+	private final int k;
+
+	private BloomFilterSizing(long setSize, long bits) {
+		this(setSize, bits, optimalK(bits, Math.max(1, setSize)));
+	}
+
+	private BloomFilterSizing(long setSize, long bits, int k) {
+		if (setSize <= 0 || bits <= 0) {
+			throw new IllegalArgumentException("The set size and the size of the filter should be positive.");
+		}
+		this.setSize = setSize;
+		this.bits = bits;
+		this.k = k;
+	}
+
+	/**
+	 * The smallest filter with a false positive rate of at most fpr. k is an
+	 * integer, so -n*ln(fpr)/ln(2)^2 bits are not quite enough: for each k
+	 * around -log2(fpr) the smallest m is -k*n/ln(1-fpr^(1/k)), and the
+	 * smaller one is used.
+	 *
+	 * @param setSize
+	 *            the expected number of elements n
+	 * @param fpr
+	 *            the target false positive rate, in (0, 1)
+	 * @return the sizing
+	 */
+	public static BloomFilterSizing forFpr(long setSize, double fpr) {
+		if (fpr <= 0 || fpr >= 1) {
+			throw new IllegalArgumentException("The false positive rate should be in (0, 1).");
+		}
+		double best = -Math.log(fpr) / LN2;
+		long bits = Long.MAX_VALUE;
+		int k = 1;
+		for (int j = Math.max(1, (int) Math.floor(best)); j <= Math.max(1, (int) Math.ceil(best)); j++) {
+			long m = (long) Math.ceil(-j * setSize / Math.log(1 - Math.pow(fpr, 1.0 / j)));
+			if (m < bits) {
+				bits = m;
+				k = j;
+			}
+		}
+		return new BloomFilterSizing(setSize, bits, k);
+	}
+
+	/**
+	 * The filter which fits in a memory budget, with the best k for its size.
+	 *
+	 * @param setSize
+	 *            the expected number of elements n
+	 * @param bytes
+	 *            the size of the filter in bytes
+	 * @return the sizing
+	 */
+	public static BloomFilterSizing forBytes(long setSize, long bytes) {
+		return new BloomFilterSizing(setSize, 8 * bytes);
+	}
+
+	/**
+	 * The filter of setSize * bitsPerElement bits, with the best k.
+	 *
+	 * @param setSize
+	 *            the expected number of elements n
+	 * @param bitsPerElement
+	 * @return the sizing
+	 */
+	public static BloomFilterSizing forBitsPerElement(long setSize, int bitsPerElement) {
+		return new BloomFilterSizing(setSize, setSize * bitsPerElement);
+	}
+
+	/**
+	 * The filter which minimizes the cost of a bloom join: the bytes of the
+	 * filter sent to server 2 (m/8) plus the bytes of the rows of R2 which
+	 * pass the filter by mistake (p * probeRows * bytesPerRow). With the
+	 * smallest m for each p, the cost n*(-ln p)/(8*ln(2)^2) + p*probeRows*bytesPerRow
+	 * is the lowest for p = n / (8*ln(2)^2 * probeRows * bytesPerRow). Every
+	 * row of R2 is counted as a possible false positive, which is close when
+	 * most rows of R2 do not join.
+	 *
+	 * @param setSize
+	 *            the number of elements n (rows of R1)
+	 * @param probeRows
+	 *            the number of rows probed (rows of R2)
+	 * @param bytesPerRow
+	 *            the average size of a row of R2 sent back in R3
+	 * @return the sizing
+	 */
+	public static BloomFilterSizing minimizingCost(long setSize, long probeRows, double bytesPerRow) {
+		if (setSize <= 0 || probeRows <= 0 || bytesPerRow <= 0) {
+			throw new IllegalArgumentException("The sizes of the relations should be positive.");
+		}
+		double p = setSize / (8 * LN2 * LN2 * probeRows * bytesPerRow);
+		// a filter above 1/2 is hardly a filter; below 1e-9 the filter is larger than any saving
+		return forFpr(setSize, Math.max(1e-9, Math.min(0.5, p)));
+	}
+
+	/**
+	 * The number of hash functions with the lowest false positive rate: the
+	 * better of floor and ceil of m/n*ln2, at least 1.
+	 *
+	 * @param bits
+	 *            the size m of the filter
+	 * @param setSize
+	 *            the number of elements n
+	 * @return the best k
+	 */
+	public static int optimalK(long bits, long setSize) {
+		double best = (double) bits / setSize * LN2;
+		int low = Math.max(1, (int) Math.floor(best));
+		int high = Math.max(1, (int) Math.ceil(best));
+		return falsePositiveRate(bits, setSize, high) < falsePositiveRate(bits, setSize, low) ? high : low;
+	}
+
+	/**
+	 * The false positive rate of a standard filter, (1-e^(-kn/m))^k.
+	 *
+	 * @param bits
+	 *            the size m of the filter
+	 * @param setSize
+	 *            the number of elements n
+	 * @param k
+	 *            the number of hash functions
+	 * @return the expected false positive rate
+	 */
+	public static double falsePositiveRate(long bits, long setSize, int k) {
+		return Math.pow(1 - Math.exp(-(double) k * setSize / bits), k);
+	}
+
+	/**
+	 * @return the number of elements n.
+	 */
+	public long setSize() {
+		return setSize;
+	}
+
+	/**
+	 * @return the size m of the filter in bits.
+	 */
+	public long bits() {
+		return bits;
+	}
+
+	/**
+	 * @return the number of hash functions k.
+	 */
+	public int k() {
+		return k;
+	}
+
+	/**
+	 * @return the expected false positive rate.
+	 */
+	public double fpr() {
+		return falsePositiveRate(bits, setSize, k);
+	}
+
+	/**
+	 * @return the number of bits per element, m/n.
+	 */
+	public double bitsPerElement() {
+		return (double) bits / setSize;
+	}
+
+	public String toString() {
+		return String.format("n=%d, m=%d bits (%.2f bits per element), k=%d, false positive rate %.4f%%", setSize, bits,
+				bitsPerElement(), k, fpr() * 100);
+	}
+}
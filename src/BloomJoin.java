@@ -1,9 +1,24 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Scanner;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.management.JMException;
 
 /**
  * Computes the join of the two 2-ary relations using Bloom Filter.
@@ -21,32 +36,49 @@ public class BloomJoin {
 	private String inputFileName2;
 	private String outputFileName;
 	private final String TEMPFILE = "temp.txt"; // the r3 file built on server2 and sent to server1
+	private static final int SAMPLES = 8; // number of samples to estimate the number of lines of R1
+	private static final int SAMPLE_BYTES = 1 << 17; // bytes per sample
+	private static final byte[] SEPARATOR = "   ".getBytes(StandardCharsets.US_ASCII); // between columns of the output
+	private static final int QUEUE_BATCHES = 16; // R3 batches waiting in the pipeline from server 2 to server 1
 	
-	private String filterType;	// Bloom Filter type; det-deterministic; ran-random.
-	private BloomFilter bf;		//Both BloomFilterDet and BloomFilterRan implement the BloomFilter interface.
+	private String filterType;	// Bloom Filter type; det-deterministic; ran-random; blocked-cache-line blocked;
+								// concurrent-thread-safe deterministic; scalable-growing deterministic;
+								// counting-deterministic with counters.
+	private BloomFilter bf;		//All the bloom filters implement the BloomFilter interface.
+	private Options options = new Options();
+	private long filterBytes = 0; // size of the serialized bloom filter sent to server 2
+	private BloomFilterMetrics filterMetrics; // counts the adds to bf on server 1
+	private BloomJoinMetrics metrics; // metrics of the phases
 	
-	private HashMap<String, ArrayList<Pair>> r3map = new HashMap<String, ArrayList<Pair>>(); 
-	//After server 1 received the relation 3 from server 2, stored it in a hashmap for better performance.
-
 	private int numOfLines1 = 0; // number of lines in input file1;
 	private int numOfLines2 = 0; // number of lines in input file2;
 	private int numOfLines3 = 0; // number of lines in TEMPFILE;
 	private int numOfLines4 = 0; // number of lines in Output File;
+	private IOException server2Failure; // set by produceR3, read after its thread is joined
 
 	/**
 	 * Initialize a new BloomJoin instance.
 	 * @param file1	file name for relation 1
 	 * @param file2	file name for relation 2
 	 * @param outputFile	file name for the output 
-	 * @param bloomFilterType	"det"-use bloom filter deterministic; "ran"-use bloom filter random
+	 * @param bloomFilterType	"det"-use bloom filter deterministic; "ran"-use bloom filter random;
+	 * 							"blocked"-use the cache-line blocked bloom filter;
+	 * 							"concurrent"-use the thread-safe bloom filter deterministic;
+	 * 							"scalable"-use the scalable bloom filter, which grows with R1;
+	 * 							"counting"-use the counting bloom filter, which supports removal;
+	 * 							"fuse"-use the binary fuse filter, smaller for a static R1;
+	 * 							"cuckoo"-use the cuckoo filter, which reads two buckets per probe
 	 */
 	public BloomJoin(String file1, String file2, String outputFile, String bloomFilterType) {
 		this.inputFileName1 = file1;
 		this.inputFileName2 = file2;
 		this.outputFileName = outputFile;
 		this.filterType = bloomFilterType.toLowerCase();
-		if (!(filterType.equals("det") || filterType.equals("ran"))) {
-			throw new IllegalArgumentException("Bloom Filter Type can only be det or ran.");
+		if (!(filterType.equals("det") || filterType.equals("ran") || filterType.equals("blocked")
+				|| filterType.equals("concurrent") || filterType.equals("scalable") || filterType.equals("counting")
+				|| filterType.equals("fuse") || filterType.equals("cuckoo"))) {
+			throw new IllegalArgumentException(
+					"Bloom Filter Type can only be det, ran, blocked, concurrent, scalable, counting, fuse or cuckoo.");
 		}
 	}
 
@@ -55,23 +87,96 @@ public class BloomJoin {
 	 * @param file1	file name for relation 1
 	 * @param file2	file name for relation 2
 	 * @param outputFile file name for output
-	 * @param bloomFilterType	"det"-use bloom filter deterministic; "ran"-use bloom filter random
+	 * @param bloomFilterType	"det"-use bloom filter deterministic; "ran"-use bloom filter random;
+	 * 							"blocked"-use the cache-line blocked bloom filter;
+	 * 							"concurrent"-use the thread-safe bloom filter deterministic;
+	 * 							"scalable"-use the scalable bloom filter, which grows with R1;
+	 * 							"counting"-use the counting bloom filter, which supports removal;
+	 * 							"fuse"-use the binary fuse filter, smaller for a static R1;
+	 * 							"cuckoo"-use the cuckoo filter, which reads two buckets per probe
 	 * @throws IllegalAccessException
 	 */
 	public static void runBloomJoin(String file1, String file2, String outputFile, String bloomFilterType)
 			throws IllegalAccessException {
+		runBloomJoin(file1, file2, outputFile, bloomFilterType, new Options());
+	}
+
+	/**
+	 * Run the bloom join with given files names, bloom filter type and options.
+	 * @param file1	file name for relation 1
+	 * @param file2	file name for relation 2
+	 * @param outputFile file name for output
+	 * @param bloomFilterType	"det", "ran", "blocked", "concurrent", "scalable", "counting", "fuse" or "cuckoo"
+	 * @param options	options of the join, e.g. the number of threads
+	 * @return the metrics of the join
+	 * @throws IllegalAccessException
+	 */
+	public static BloomJoinMetrics runBloomJoin(String file1, String file2, String outputFile, String bloomFilterType,
+			Options options) throws IllegalAccessException {
 	
+		if (!(options.joinMethod.equals("hash") || options.joinMethod.equals("merge"))) {
+			throw new IllegalArgumentException("Join method can only be hash or merge.");
+		}
 		BloomJoin exp = new BloomJoin(file1, file2, outputFile, bloomFilterType);
-		int setSize = exp.countLines(file1);
-		int bitsPerElement = 10;
-		if (exp.filterType.equals("det")) {
-			exp.bf = new BloomFilterDet(setSize, bitsPerElement);
+		exp.options = options;
+		exp.metrics = new BloomJoinMetrics(exp.filterType, options.joinMethod);
+		int setSize;
+		if (options.exactSetSize || exp.filterType.equals("cuckoo")) {
+			// a cuckoo filter sized for too few keys fills up, it can not be sized from an estimate
+			setSize = exp.countLines(file1);
+		} else {
+			setSize = exp.estimateLines(file1);
+			System.out.println("Estimated " + setSize + " records in R1 from a sample.");
+		}
+		BloomFilterSizing sizing = exp.sizeFilter(Math.max(1, setSize));
+		System.out.println("Filter: " + sizing + ".");
+		exp.bf = newFilter(exp.filterType, sizing);
+		exp.filterMetrics = new BloomFilterMetrics(exp.bf);
+		exp.metrics.setFilter(exp.filterMetrics);
+		if (options.jmx) {
+			try {
+				exp.metrics.register();
+			} catch (JMException ex) {
+				ex.printStackTrace();
+			}
+		}
+		if (options.threads > 1) {
+			exp.buildFilterParallel(options.threads);
+		} else {
+			exp.buildFilter();
+		}
+		if (options.server2 != null) {
+			exp.exchangeWithServer2();
+			exp.join();
 		} else {
-			exp.bf = new BloomFilterRan(setSize, bitsPerElement);
+			exp.sendFilter();
+			if (options.pipelineR3 && options.joinMethod.equals("hash") && options.memoryBudget == 0) {
+				exp.pipelineR3();
+			} else {
+				exp.buildR3();
+				exp.join();
+			}
+		}
+		exp.finishMetrics();
+		return exp.metrics;
+	}
+
+	/**
+	 * Record the sizes of the relations and the filter, and write the metrics to
+	 * options.metricsFile.
+	 */
+	private void finishMetrics() {
+		metrics.setRows(numOfLines1, numOfLines2, numOfLines3, numOfLines4);
+		metrics.setFilterBytes(filterBytes);
+		if (options.metricsFile != null) {
+			try {
+				FileWriter writer = new FileWriter(options.metricsFile);
+				writer.write(metrics.toJson());
+				writer.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
 		}
-		exp.buildFilter();
-		exp.buildR3();
-		exp.join();
 	}
 
 	/**
@@ -84,61 +189,193 @@ public class BloomJoin {
 		Timer timer = new Timer();
 		timer.start();
 		try {
-			File file = new File(inputFileName1);
-			Scanner scanner = new Scanner(file);
-			
-			while (scanner.hasNextLine()) {
-				String s = scanner.nextLine();
+			RelationReader reader = new RelationReader(new File(inputFileName1));
+			while (reader.next()) {
 				numOfLines1++;
-				String[] input = s.split(" ");
-				String key = input[0];
-				String value = input[1];
-				bf.add(key);// Add to bloom filter, assume that the join
-							// attribute is the first
-							// column.
+				bf.add(reader.buffer(), reader.keyOffset(), reader.keyLength());// Add to bloom filter, assume that the join
+											// attribute is the first
+											// column.
 			}
-			scanner.close();
-		} catch (FileNotFoundException ex) {
+			reader.close();
+		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
+		filterMetrics.countAdds(numOfLines1); // once, not per row
+		buildStaticFilter();
 		timer.stop();
+		metrics.phase("buildFilter", timer.getTime(), numOfLines1, new File(inputFileName1).length());
 		System.out.println("Used " + timer.getTime() + " ms to build the Bloom Filter.");
 		System.out.println("There are "+numOfLines1+" records in R1.");
 		System.out.println();
 	}
 
+	/**
+	 * Create a bloom filter for R1 on server 1 with several threads. R1 is split
+	 * into byte ranges, one per thread. A concurrent filter is shared by all the
+	 * threads; otherwise each thread builds a partial filter, and the partial
+	 * filters are merged by union(). A scalable partial whose keys do not fit in
+	 * the sub-filters of bf is added again to bf instead.
+	 * @param threads	number of threads
+	 * @throws IllegalAccessException
+	 */
+	private void buildFilterParallel(int threads) throws IllegalAccessException {
+		System.out.println();
+		System.out.println("Creating a bloom filter for R1 on server 1 with " + threads + " threads...");
+		Timer timer = new Timer();
+		timer.start();
+		final File file = new File(inputFileName1);
+		final long length = file.length();
+		final BloomFilter[] partials = new BloomFilter[threads];
+		final int[] counts = new int[threads];
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int id = t;
+			partials[t] = (t == 0 || bf instanceof BloomFilterConcurrent) ? bf : newPartialFilter();
+			workers[t] = new Thread(() -> {
+				try {
+					counts[id] = addRange(file, length * id / threads, length * (id + 1) / threads, partials[id]);
+					filterMetrics.countAdds(counts[id]);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			});
+			workers[t].start();
+		}
+		try {
+			for (int t = 0; t < threads; t++) {
+				workers[t].join();
+				if (partials[t] != bf && bf instanceof BloomFilterScalable
+						&& !((BloomFilterScalable) bf).fits((BloomFilterScalable) partials[t])) {
+					// merged, the partial would overflow a sub-filter of bf, its keys are added again instead
+					addRange(file, length * t / threads, length * (t + 1) / threads, bf);
+				} else if (partials[t] != bf) {
+					bf.union(partials[t]);
+				}
+				numOfLines1 += counts[t];
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		buildStaticFilter();
+		timer.stop();
+		metrics.phase("buildFilter", timer.getTime(), numOfLines1, length);
+		System.out.println("Used " + timer.getTime() + " ms to build the Bloom Filter.");
+		System.out.println("There are "+numOfLines1+" records in R1.");
+		System.out.println();
+	}
+
+	/**
+	 * Build the table of a binary fuse filter from the keys of R1, so that it
+	 * is part of the time to build the filter rather than of sending it.
+	 */
+	private void buildStaticFilter() {
+		if (bf instanceof BloomFilterFuse) {
+			((BloomFilterFuse) bf).build();
+		}
+	}
+
+	/**
+	 * Create an empty filter with the same type, size and hash functions as bf,
+	 * so that it can be merged into bf.
+	 * @return an empty partial filter
+	 */
+	private BloomFilter newPartialFilter() {
+		if (bf instanceof BloomFilterDet) {
+			return new BloomFilterDet(new HeapBitStore(bf.filterSize()), bf.numHashes());
+		} else if (bf instanceof BloomFilterBlocked) {
+			return new BloomFilterBlocked(new HeapBitStore(bf.filterSize()), bf.numHashes());
+		} else if (bf instanceof BloomFilterRan) {
+			return new BloomFilterRan(new HeapBitStore(bf.filterSize()), bf.numHashes(), ((BloomFilterRan) bf).seed());
+		} else if (bf instanceof BloomFilterCounting) {
+			return new BloomFilterCounting(bf.filterSize(), bf.numHashes());
+		} else if (bf instanceof BloomFilterScalable) {
+			BloomFilterScalable scalable = (BloomFilterScalable) bf;
+			return new BloomFilterScalable(scalable.initialCapacity(), scalable.targetFpr());
+		} else if (bf instanceof BloomFilterFuse) {
+			return new BloomFilterFuse(((BloomFilterFuse) bf).fingerprintBits());
+		} else if (bf instanceof BloomFilterCuckoo) {
+			BloomFilterCuckoo cuckoo = (BloomFilterCuckoo) bf;
+			return new BloomFilterCuckoo(cuckoo.numBuckets(), cuckoo.fingerprintBits(), cuckoo.seed());
+		}
+		throw new IllegalArgumentException("Can not build a " + bf.getClass().getName() + " in parallel.");
+	}
+
+	/**
+	 * Add the keys of the lines starting in the byte range [start, end) of a
+	 * relation file to a filter. A line which crosses start belongs to the
+	 * previous range.
+	 * @param file	relation file
+	 * @param start	first byte of the range
+	 * @param end	end of the range (exclusive)
+	 * @param filter	the filter to add the keys to
+	 * @return the number of lines in the range
+	 * @throws IOException
+	 */
+	static int addRange(File file, long start, long end, BloomFilter filter) throws IOException {
+		int count = 0;
+		RelationReader reader = new RelationReader(file, start, end);
+		try {
+			while (reader.next()) {
+				filter.add(reader.buffer(), reader.keyOffset(), reader.keyLength());
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Serialize the bloom filter on server 1 and deserialize it on server 2,
+	 * the serialized size is the communication cost of the filter.
+	 * @throws IllegalAccessException
+	 */
+	private void sendFilter() throws IllegalAccessException {
+		System.out.println("Sending the bloom filter from server 1 to server 2...");
+		Timer timer = new Timer();
+		timer.start();
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			filterBytes = BloomFilterSerializer.write(bf, Channels.newChannel(out), options.compressFilter);
+			// the probes of server 2 are counted with the adds of server 1
+			bf = new BloomFilterMetrics(
+					BloomFilterSerializer.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray()))),
+					filterMetrics);
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		timer.stop();
+		metrics.phase("sendFilter", timer.getTime(), 0, filterBytes);
+		System.out.println("Used " + timer.getTime() + " ms to serialize and deserialize the Bloom Filter.");
+		System.out.println("A bloom filter of " + filterBytes + " bytes" + (options.compressFilter ? " (compressed)" : "")
+				+ " was sent to server 2 from server 1.");
+		System.out.println();
+	}
+
 	/**
 	 * Create the relation 3 on server 2 based on the relation 2 and bloom filter received from server 1.
 	 * @throws IllegalAccessException
+	 * @throws IllegalStateException if R2 can not be read or TEMPFILE written
 	 */
 	private void buildR3() throws IllegalAccessException {
 		System.out.println("Creating R3 on server 2 based on the relation 2 and bloom filter received from server 1...");
 		Timer timer = new Timer();
 		timer.start();
-		File r2File = new File(inputFileName2);
-		File outputFile = new File(TEMPFILE);
 		try {
-			Scanner scanner = new Scanner(r2File);
-			PrintWriter writter = new PrintWriter(outputFile);
-			while (scanner.hasNextLine()) {
-				String s = scanner.nextLine();
-				numOfLines2++;
-				String[] input = s.split("\\s+"); // The \\s is equivalent to [
-													// \\t\\n\\x0B\\f\\r]
-				String key = input[0];
-				String value = input[1];
-				if (bf.appears(key)) {
-					String output = key + "   " + value + "\n";
-					writter.append(output);
-					numOfLines3++;
-				}
-			}
+			OutputStream writter = new BufferedOutputStream(new FileOutputStream(TEMPFILE), 1 << 16);
+			int[] counts = filterR2(bf, new File(inputFileName2), writter);
 			writter.close();
-			scanner.close();
-		} catch (FileNotFoundException ex) {
-			ex.printStackTrace();
+			numOfLines2 = counts[0];
+			numOfLines3 = counts[1];
+		} catch (IOException ex) {
+			// joining a partial TEMPFILE would give a wrong answer
+			new File(TEMPFILE).delete();
+			throw new IllegalStateException("Could not create R3 on server 2.", ex);
 		}
 		timer.stop();
+		metrics.phase("buildR3", timer.getTime(), numOfLines2, new File(inputFileName2).length());
 		System.out.println("Used " + timer.getTime() + " ms to build the R3 on server 2.");
 		System.out.println("There are "+numOfLines2+" records in R2.");
 		System.out.println("A temp file with "+numOfLines3+" records was sent to server 1 from server 2.");
@@ -146,64 +383,375 @@ public class BloomJoin {
 	}
 
 	/**
-	 * Perform the join on server 1 based on relation 1 and the relation 3 received from server 2.
+	 * Write the rows of R2 whose key appears in the bloom filter, i.e. R3. This is the work of
+	 * server 2, in this JVM or in BloomJoinServer2.
+	 * @param bf	the bloom filter received from server 1
+	 * @param relation2	relation 2
+	 * @param out	destination of R3
+	 * @return the number of lines of R2 and of R3
+	 * @throws IOException
+	 */
+	static int[] filterR2(BloomFilter bf, File relation2, OutputStream out) throws IOException {
+		int[] counts = new int[2];
+		RelationReader reader = new RelationReader(relation2);
+		Batch rows = new Batch();
+		long[] passed = new long[Batch.ROWS / 64];
+		boolean more = true;
+		while (more) {
+			more = reader.next();
+			if (more) {
+				rows.add(reader.buffer(), reader.keyOffset(), reader.keyLength(), reader.valueOffset(),
+						reader.valueLength());
+				counts[0]++;
+			}
+			if (rows.isFull() || !more) {
+				// probe the keys of the batch together
+				bf.appears(rows.bytes, rows.keyOffsets, rows.keyLengths, rows.rows, passed);
+				for (int i = 0; i < rows.rows; i++) {
+					if ((passed[i >>> 6] & 1L << i) != 0) {
+						out.write(rows.bytes, rows.keyOffsets[i], rows.keyLengths[i]);
+						out.write(SEPARATOR);
+						out.write(rows.bytes, rows.valueOffsets[i], rows.valueLengths[i]);
+						out.write('\n');
+						counts[1]++;
+					}
+				}
+				rows.clear();
+			}
+		}
+		reader.close();
+		return counts;
+	}
+
+	/**
+	 * Send the bloom filter to a server 2 process (BloomJoinServer2) over a socket, and receive R3
+	 * from it into TEMPFILE. Report the bytes sent in each direction, and the bytes server 2 would
+	 * send if it shipped R2 whole.
+	 * @throws IllegalStateException if the connection, the answer header or R3 fails; the join
+	 *             is not run then
 	 * @throws IllegalAccessException
 	 */
-	private void join() throws IllegalAccessException {
-		System.out.println("Performing the join on server 1...");
+	private void exchangeWithServer2() throws IllegalAccessException {
+		System.out.println("Sending the bloom filter to server 2 at " + options.server2 + " and receiving R3...");
+		Timer timer = new Timer();
+		timer.start();
+		long r2Bytes = 0;
+		long r3Bytes = 0;
+		try (SocketChannel socket = SocketChannel.open(options.server2)) {
+			filterBytes = BloomFilterSerializer.write(bf, socket, options.compressFilter);
+			ByteBuffer header = ByteBuffer.allocate(BloomJoinServer2.HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (socket.read(header) < 0)
+					throw new EOFException("Server 2 closed the connection.");
+			}
+			header.flip();
+			r2Bytes = header.getLong();
+			long lines2 = header.getLong();
+			long lines3 = header.getLong();
+			r3Bytes = header.getLong();
+			if (r2Bytes < 0 || lines2 < 0 || lines2 > Integer.MAX_VALUE || lines3 < 0 || lines3 > lines2 || r3Bytes < 0) {
+				throw new IOException("Corrupt answer header from server 2.");
+			}
+			try (FileOutputStream temp = new FileOutputStream(TEMPFILE)) {
+				FileChannel channel = temp.getChannel();
+				long position = 0;
+				while (position < r3Bytes) {
+					long n = channel.transferFrom(socket, position, r3Bytes - position);
+					if (n <= 0)
+						throw new EOFException("R3 is incomplete, " + position + " of " + r3Bytes + " bytes received.");
+					position += n;
+				}
+			}
+			numOfLines2 = (int) lines2;
+			numOfLines3 = (int) lines3;
+		} catch (IOException ex) {
+			// joining a stale or partial TEMPFILE would give a wrong answer
+			new File(TEMPFILE).delete();
+			throw new IllegalStateException("Could not receive R3 from server 2 at " + options.server2 + ".", ex);
+		}
+		timer.stop();
+		long received = BloomJoinServer2.HEADER + r3Bytes;
+		metrics.phase("exchangeWithServer2", timer.getTime(), numOfLines2, filterBytes + received);
+		System.out.println("Used " + timer.getTime() + " ms to send the Bloom Filter and receive the R3.");
+		System.out.println("There are "+numOfLines2+" records in R2.");
+		System.out.println("Server 1 sent " + filterBytes + " bytes" + (options.compressFilter ? " (compressed)" : "")
+				+ " and received " + received + " bytes (" + numOfLines3 + " records of R3), "
+				+ (filterBytes + received) + " bytes in all.");
+		System.out.println("Shipping R2 whole would send " + r2Bytes + " bytes from server 2.");
+		System.out.println();
+	}
+
+	/**
+	 * Create R3 on server 2 and build its hash table on server 1 at the same time: a server 2
+	 * thread filters R2 into batches of rows, handed to server 1 through a bounded queue, so
+	 * that TEMPFILE is neither written nor read again. Then R1 is joined with the table.
+	 * The table is only built on R3 while R3 is smaller than R1: once the rows received are
+	 * larger than R1, they are written to TEMPFILE and joined by join(), which builds the
+	 * table on the smaller relation.
+	 * @throws IllegalAccessException
+	 * @throws IllegalStateException if server 2 can not read R2, TEMPFILE can not be written,
+	 * 			or the thread is interrupted
+	 */
+	private void pipelineR3() throws IllegalAccessException {
+		System.out.println("Creating R3 on server 2 and sending it to server 1 in batches...");
 		Timer timer = new Timer();
 		timer.start();
-		File r3 = new File(TEMPFILE);
+		final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES);
+		Thread server2 = new Thread(() -> {
+			try {
+				produceR3(queue);
+			} catch (InterruptedException e) {
+				// server 1 stopped taking the batches
+			}
+		});
+		server2Failure = null;
+		server2.start();
+		JoinHashTable table = new JoinHashTable();
+		long r1Bytes = new File(inputFileName1).length();
+		long r3Bytes = 0; // bytes of the rows received, as in TEMPFILE
+		OutputStream spill = null; // TEMPFILE, once R3 is larger than R1
+		int batches = 0;
+		Batch batch = null;
 		try {
-			Scanner scanner = new Scanner(r3);
-			while (scanner.hasNextLine()) {
-				String s = scanner.nextLine();
-				String[] input = s.split("\\s+"); // The \\s is equivalent to [
-													// \\t\\n\\x0B\\f\\r]
-				String key = input[0];
-				String value = input[1];
-				ArrayList<Pair> tmpList = new ArrayList<Pair>();
-				if (r3map.containsKey(key)) {
-					tmpList = r3map.get(key);
-					tmpList.add(new Pair(key, value));
-				} else {
-					tmpList.add(new Pair(key, value));
+			for (batch = queue.take(); batch != Batch.END; batch = queue.take()) {
+				for (int i = 0; i < batch.rows; i++) {
+					if (spill != null) {
+						spill.write(batch.bytes, batch.keyOffsets[i], batch.keyLengths[i]);
+						spill.write(SEPARATOR);
+						spill.write(batch.bytes, batch.valueOffsets[i], batch.valueLengths[i]);
+						spill.write('\n');
+						continue;
+					}
+					table.put(batch.bytes, batch.keyOffsets[i], batch.keyLengths[i], batch.valueOffsets[i],
+							batch.valueLengths[i]);
+					r3Bytes += batch.keyLengths[i] + SEPARATOR.length + batch.valueLengths[i] + 1;
+					if (r3Bytes > r1Bytes) {
+						System.out.println("R3 is larger than R1, writing it to " + TEMPFILE + " to build the table on R1.");
+						spill = new BufferedOutputStream(new FileOutputStream(TEMPFILE), 1 << 16);
+						table.write(spill, SEPARATOR);
+						table = null;
+					}
+				}
+				batches++;
+			}
+			server2.join();
+			if (spill != null) {
+				spill.close();
+			}
+			if (server2Failure != null) {
+				throw server2Failure;
+			}
+		} catch (InterruptedException e) {
+			server2.interrupt();
+			Thread.currentThread().interrupt();
+			closeSpill(spill);
+			throw new IllegalStateException("Interrupted while receiving R3 from server 2.", e);
+		} catch (IOException e) {
+			try {
+				// let server 2 finish, it waits for room in the queue
+				while (batch != Batch.END) {
+					batch = queue.take();
 				}
-				r3map.put(key, tmpList);
+				server2.join();
+			} catch (InterruptedException ie) {
+				server2.interrupt();
+				Thread.currentThread().interrupt();
 			}
-			scanner.close();
-		} catch (FileNotFoundException ex) {
+			closeSpill(spill);
+			String message = e == server2Failure ? "Could not create R3 on server 2."
+					: "Could not write R3 to " + TEMPFILE + ".";
+			throw new IllegalStateException(message, e);
+		}
+		timer.stop();
+		metrics.phase("buildR3", timer.getTime(), numOfLines2, new File(inputFileName2).length());
+		if (spill != null) {
+			System.out.println("Used " + timer.getTime() + " ms to build the R3 on server 2.");
+			System.out.println("There are "+numOfLines2+" records in R2.");
+			System.out.println(numOfLines3 + " records of R3 were sent to server 1 from server 2 in " + batches + " batches.");
+			System.out.println();
+			join();
+			return;
+		}
+		metrics.setHashTable(table.numKeys(), table.memoryBytes());
+		System.out.println("Used " + timer.getTime() + " ms to build the R3 on server 2 and its hash table on server 1.");
+		System.out.println("There are "+numOfLines2+" records in R2.");
+		System.out.println(numOfLines3 + " records of R3 were sent to server 1 from server 2 in " + batches + " batches.");
+		System.out.println("The hash table of R3 holds " + table.numKeys() + " keys in " + table.memoryBytes() + " bytes.");
+		System.out.println();
+
+		System.out.println("Performing the join on server 1...");
+		timer.start();
+		try {
+			OutputStream writter = new BufferedOutputStream(new FileOutputStream(outputFileName), 1 << 16);
+			numOfLines4 = (int) new GraceHashJoin(Long.MAX_VALUE, null).join(table, new File(inputFileName1), writter);
+			writter.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		timer.stop();
+		metrics.phase("join", timer.getTime(), numOfLines1, new File(inputFileName1).length());
+		System.out.println("Used " + timer.getTime() + " ms to join the R1 and R3 on server 1.");
+		System.out.println("There are " + numOfLines4 + " records after join.");
+	}
+
+	/**
+	 * Close and delete the TEMPFILE of a failed pipeline, if it was started.
+	 */
+	private void closeSpill(OutputStream spill) {
+		if (spill == null)
+			return;
+		try {
+			spill.close();
+		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
-		File r1 = new File(inputFileName1);
-		File outputFile = new File(outputFileName);
+		new File(TEMPFILE).delete();
+	}
+
+	/**
+	 * Server 2 side of the pipeline: put the rows of R2 which appear in the bloom filter into
+	 * batches. Batch.END is always put last, also after an IOException, which is left in
+	 * server2Failure; when interrupted, nothing more is put, as server 1 stopped taking.
+	 */
+	private void produceR3(BlockingQueue<Batch> queue) throws InterruptedException {
 		try {
-			Scanner scanner = new Scanner(r1);
-			PrintWriter writter = new PrintWriter(outputFile);
-			while (scanner.hasNextLine()) {
-				String s = scanner.nextLine();
-				String[] list = s.split("\\s+");
-				String key = list[0];
-				String value = list[1];
-				if (r3map.containsKey(key)) {
-					for (Pair p : r3map.get(key)) {
-						String output = key + "   " + value + "   " + p.value + "\n";
-						writter.append(output);
-						numOfLines4++;
+			RelationReader reader = new RelationReader(new File(inputFileName2));
+			Batch rows = new Batch(); // rows of R2 to probe
+			long[] passed = new long[Batch.ROWS / 64];
+			Batch batch = new Batch(); // rows of R3 to send
+			boolean more = true;
+			while (more) {
+				more = reader.next();
+				if (more) {
+					rows.add(reader.buffer(), reader.keyOffset(), reader.keyLength(), reader.valueOffset(),
+							reader.valueLength());
+					numOfLines2++;
+				}
+				if (rows.isFull() || !more) {
+					bf.appears(rows.bytes, rows.keyOffsets, rows.keyLengths, rows.rows, passed);
+					for (int i = 0; i < rows.rows; i++) {
+						if ((passed[i >>> 6] & 1L << i) == 0)
+							continue;
+						batch.add(rows.bytes, rows.keyOffsets[i], rows.keyLengths[i], rows.valueOffsets[i],
+								rows.valueLengths[i]);
+						numOfLines3++;
+						if (batch.isFull()) {
+							queue.put(batch);
+							batch = new Batch();
+						}
 					}
+					rows.clear();
 				}
 			}
+			reader.close();
+			if (batch.rows > 0)
+				queue.put(batch);
+		} catch (IOException ex) {
+			server2Failure = ex;
+		}
+		queue.put(Batch.END);
+	}
+
+	/**
+	 * Perform the join on server 1 based on relation 1 and the relation 3 received from server 2.
+	 * The hash table is built on the smaller of R1 and R3 (in bytes, which is what the table
+	 * holds), and the larger one is streamed. With options.memoryBudget, the relations are
+	 * partitioned on disk when the table does not fit (see GraceHashJoin).
+	 * With options.joinMethod "merge", both relations are sorted by key and merged instead
+	 * (see SortMergeJoin).
+	 * @throws IllegalAccessException
+	 */
+	private void join() throws IllegalAccessException {
+		System.out.println("Performing the join on server 1...");
+		Timer timer = new Timer();
+		timer.start();
+		try {
+			OutputStream writter = new BufferedOutputStream(new FileOutputStream(outputFileName), 1 << 16);
+			File r1 = new File(inputFileName1);
+			File r3 = new File(TEMPFILE);
+			if (options.joinMethod.equals("merge")) {
+				// the runs are sorted in memory, so a budget is needed even without a limit
+				long budget = options.memoryBudget > 0 ? options.memoryBudget : Runtime.getRuntime().maxMemory() / 4;
+				numOfLines4 = (int) new SortMergeJoin(budget, options.spillDirectory).join(r1, r3, writter);
+			} else {
+				long budget = options.memoryBudget > 0 ? options.memoryBudget : Long.MAX_VALUE;
+				GraceHashJoin hashJoin = new GraceHashJoin(budget, options.spillDirectory);
+				numOfLines4 = (int) hashJoin.join(r1, r3, writter);
+				metrics.setHashTable(hashJoin.hashTableKeys(), hashJoin.hashTableBytes());
+			}
 			writter.close();
-			scanner.close();
-		} catch (FileNotFoundException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 		timer.stop();
+		metrics.phase("join", timer.getTime(), numOfLines1 + numOfLines3,
+				new File(inputFileName1).length() + new File(TEMPFILE).length());
 		System.out.println("Used " + timer.getTime() + " ms to join the R1 and R3 on server 1.");
 		System.out.println("There are " + numOfLines4 + " records after join.");
 	}
 
+	/**
+	 * Choose the size and the number of hash functions of the filter from the
+	 * options: the size which minimizes the bytes sent between the servers
+	 * (minimizeCost), a target false positive rate, a byte budget, or else
+	 * bitsPerElement bits per record of R1.
+	 * @param setSize	the number of records of R1
+	 * @return the sizing of the filter
+	 */
+	private BloomFilterSizing sizeFilter(int setSize) {
+		if (options.minimizeCost) {
+			if (options.server2 != null) {
+				throw new IllegalArgumentException("The cost can only be minimized when R2 is read by this process.");
+			}
+			int probeRows = Math.max(1, options.exactSetSize ? countLines(inputFileName2) : estimateLines(inputFileName2));
+			double bytesPerRow = Math.max(1.0, (double) new File(inputFileName2).length() / probeRows);
+			BloomFilterSizing sizing = BloomFilterSizing.minimizingCost(setSize, probeRows, bytesPerRow);
+			System.out.printf("Minimizing the cost for %d records in R2 of %.1f bytes: %.0f bytes of filter + %.0f bytes of false positives.%n",
+					probeRows, bytesPerRow, sizing.bits() / 8.0, sizing.fpr() * probeRows * bytesPerRow);
+			return sizing;
+		} else if (options.targetFpr > 0) {
+			return BloomFilterSizing.forFpr(setSize, options.targetFpr);
+		} else if (options.filterBudget > 0) {
+			return BloomFilterSizing.forBytes(setSize, options.filterBudget);
+		}
+		return BloomFilterSizing.forBitsPerElement(setSize, options.bitsPerElement);
+	}
+
+	/**
+	 * Create an empty filter of a given type and sizing.
+	 * @param filterType	"det", "ran", "blocked", "concurrent", "scalable", "counting", "fuse" or "cuckoo"
+	 * @param sizing
+	 * @return a new empty filter
+	 */
+	static BloomFilter newFilter(String filterType, BloomFilterSizing sizing) {
+		long m = sizing.bits();
+		int k = sizing.k();
+		if (filterType.equals("det")) {
+			return new BloomFilterDet(new HeapBitStore(BloomFilterDet.nextPrime(m)), k);
+		} else if (filterType.equals("blocked")) {
+			long blocks = (m + 511) / 512;
+			return new BloomFilterBlocked(new HeapBitStore(blocks * 512), k);
+		} else if (filterType.equals("concurrent")) {
+			return new BloomFilterConcurrent(new AtomicBitStore(BloomFilterDet.nextPrime(m)), k);
+		} else if (filterType.equals("scalable")) {
+			return new BloomFilterScalable(sizing.setSize(), sizing.fpr());
+		} else if (filterType.equals("counting")) {
+			return new BloomFilterCounting(BloomFilterDet.nextPrime(m), k);
+		} else if (filterType.equals("fuse")) {
+			// rate 2^-f
+			int bits = (int) Math.ceil(-Math.log(sizing.fpr()) / Math.log(2));
+			return new BloomFilterFuse(Math.max(1, Math.min(32, bits)));
+		} else if (filterType.equals("cuckoo")) {
+			// rate about 2*BUCKET_SIZE*LOAD/2^f
+			int bits = (int) Math.ceil(Math.log(2 * BloomFilterCuckoo.BUCKET_SIZE * BloomFilterCuckoo.LOAD / sizing.fpr())
+					/ Math.log(2));
+			return new BloomFilterCuckoo(BloomFilterCuckoo.bucketsFor(sizing.setSize()), Math.max(1, Math.min(32, bits)),
+					new Random().nextLong());
+		}
+		return new BloomFilterRan(new HeapBitStore(BloomFilterDet.nextPrime(m)), k);
+	}
+
 	/**
 	 * Count the number of lines of a given file.
 	 * @param fileName
@@ -212,19 +760,119 @@ public class BloomJoin {
 	private int countLines(String fileName) {
 		int count = 0;
 		try {
-			File file = new File(fileName);
-			Scanner scanner = new Scanner(file);
-			while (scanner.hasNextLine()) {
-				scanner.nextLine();
+			RelationReader reader = new RelationReader(new File(fileName));
+			while (reader.next()) {
 				count++;
 			}
-			scanner.close();
-		} catch (FileNotFoundException ex) {
+			reader.close();
+		} catch (IOException ex) {
 			ex.printStackTrace();
 		}
 		return count;
 	}
 
+	/**
+	 * Estimate the number of lines of a given file without reading all of it:
+	 * the file size divided by the average line length of a few samples spread
+	 * over the file. A small file is counted exactly.
+	 * @param fileName
+	 * @return the estimated number of lines of a given file
+	 */
+	private int estimateLines(String fileName) {
+		File file = new File(fileName);
+		long length = file.length();
+		if (length <= SAMPLES * SAMPLE_BYTES) {
+			return countLines(fileName);
+		}
+		long lines = 0;
+		long bytes = 0;
+		try {
+			for (int i = 0; i < SAMPLES; i++) {
+				long start = (length - SAMPLE_BYTES) / (SAMPLES - 1) * i;
+				RelationReader reader = new RelationReader(file, start, start + SAMPLE_BYTES);
+				long first = reader.position();
+				long last = first;
+				while (reader.next()) {
+					lines++;
+					last = reader.position();
+				}
+				bytes += last - first;
+				reader.close();
+			}
+		} catch (IOException ex) {
+			ex.printStackTrace();
+		}
+		if (lines == 0 || bytes == 0) {
+			return countLines(fileName);
+		}
+		return (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil((double) length * lines / bytes));
+	}
+
+	/**
+	 * Options of the bloom join.
+	 */
+	public static class Options {
+		public int threads = 1; // number of threads to build the bloom filter
+		public boolean compressFilter = false; // deflate the bloom filter sent to server 2
+		public boolean exactSetSize = false; // count the lines of R1 to size the filter, instead of estimating
+											// (always counted for the cuckoo filter)
+		public long memoryBudget = 0; // bytes for the join hash table or sort runs, 0 for no limit
+		public File spillDirectory = null; // directory of the join partition or run files, null for the temp directory
+		public String joinMethod = "hash"; // hash-hash join (GraceHashJoin); merge-sort-merge join (SortMergeJoin)
+		public boolean pipelineR3 = true; // stream R3 to the in-memory hash join in batches; false-write TEMPFILE,
+											// as two separate servers would. Only used by the hash join without memoryBudget.
+		public InetSocketAddress server2 = null; // address of a BloomJoinServer2 process holding R2, null to run
+												// server 2 in this JVM (file2 is then not read by this process)
+		public String metricsFile = null; // write the metrics of the join (BloomJoinMetrics) as JSON to this file
+		public boolean jmx = false; // register the metrics as MBeans, see BloomJoinMetrics
+		public int bitsPerElement = 10; // bits of the filter per record of R1, if no other sizing is given
+		public double targetFpr = 0; // size the filter for this false positive rate, 0 to use bitsPerElement
+		public long filterBudget = 0; // bytes of the filter, 0 to use bitsPerElement
+		public boolean minimizeCost = false; // size the filter to minimize the filter bytes plus the false positive
+												// bytes of R3, from the sizes of R1 and R2 (file2 must be local)
+	}
+
+	/**
+	 * A batch of rows, e.g. the R3 rows sent from server 2 to server 1 in the pipeline, or the R2
+	 * rows probed together: the bytes of the keys and values, and their offsets and lengths.
+	 */
+	private static class Batch {
+		static final int ROWS = 4096; // rows per batch
+		static final Batch END = new Batch(); // marks the end of R3
+
+		byte[] bytes = new byte[1 << 16];
+		int size = 0;
+		int[] keyOffsets = new int[ROWS];
+		int[] keyLengths = new int[ROWS];
+		int[] valueOffsets = new int[ROWS];
+		int[] valueLengths = new int[ROWS];
+		int rows = 0;
+
+		void add(byte[] buf, int kOff, int kLen, int vOff, int vLen) {
+			if (size + kLen + vLen > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + kLen + vLen));
+			}
+			int i = rows++;
+			keyOffsets[i] = size;
+			keyLengths[i] = kLen;
+			System.arraycopy(buf, kOff, bytes, size, kLen);
+			size += kLen;
+			valueOffsets[i] = size;
+			valueLengths[i] = vLen;
+			System.arraycopy(buf, vOff, bytes, size, vLen);
+			size += vLen;
+		}
+
+		boolean isFull() {
+			return rows == ROWS;
+		}
+
+		void clear() {
+			size = 0;
+			rows = 0;
+		}
+	}
+
 	/**
 	 * Inner class, Timer.
 	 * @author YAN
@@ -256,11 +904,11 @@ public class BloomJoin {
 	}
 
 	/**
-	 * Inner class to store the key, value pair.
+	 * Nested class to store the key, value pair, ordered by key.
 	 * @author YAN
 	 *
 	 */
-	private class Pair implements Comparable<Pair> {
+	static class Pair implements Comparable<Pair> {
 		public String key;
 		public String value;
 
@@ -0,0 +1,249 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a bloom join: for each phase, its time and the rows and bytes it
+ * read; the rows of R1, R2, R3 and of the result, the selectivity of the
+ * filter on R2 (R3 rows / R2 rows), the size of the filter sent to server 2
+ * and of the join hash table; and the BloomFilterMetrics of the filter (adds
+ * on server 1, probes on server 2).
+ *
+ * BloomJoin.runBloomJoin returns them; with Options.metricsFile they are
+ * written as JSON, and with Options.jmx they are registered as MBeans
+ * (BloomJoin:type=BloomJoinMetrics and BloomJoin:type=BloomFilterMetrics),
+ * which a JMX client such as jconsole can read while the join runs. The
+ * metrics are recorded once per phase, so they cost nothing per row besides
+ * the counters of BloomFilterMetrics.
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomJoinMetrics implements BloomJoinMetricsMBean {
+	public static final String MBEAN_NAME = "BloomJoin:type=BloomJoinMetrics";
+	public static final String FILTER_MBEAN_NAME = "BloomJoin:type=BloomFilterMetrics";
+
+	private final String filterType;
+	private final String joinMethod;
+	private final List<Phase> phases = new CopyOnWriteArrayList<Phase>(); // read by JMX threads
+	private volatile BloomFilterMetrics filter;
+	private volatile long r1Rows = 0;
+	private volatile long r2Rows = 0;
+	private volatile long r3Rows = 0;
+	private volatile long outputRows = 0;
+	private volatile long filterBytes = 0;
+	private volatile long hashTableKeys = 0;
+	private volatile long hashTableBytes = 0;
+
+	/**
+	 * @param filterType
+	 *            the bloom filter type of the join
+	 * @param joinMethod
+	 *            the join method, hash or merge
+	 */
+	public BloomJoinMetrics(String filterType, String joinMethod) {
+		this.filterType = filterType;
+		this.joinMethod = joinMethod;
+	}
+
+	/**
+	 * Record a finished phase.
+	 *
+	 * @param name
+	 * @param millis
+	 *            the time of the phase
+	 * @param rows
+	 *            the rows read by the phase
+	 * @param bytes
+	 *            the bytes read (or sent) by the phase
+	 */
+	void phase(String name, long millis, long rows, long bytes) {
+		phases.add(new Phase(name, millis, rows, bytes));
+	}
+
+	void setFilter(BloomFilterMetrics filter) {
+		this.filter = filter;
+	}
+
+	void setRows(long r1Rows, long r2Rows, long r3Rows, long outputRows) {
+		this.r1Rows = r1Rows;
+		this.r2Rows = r2Rows;
+		this.r3Rows = r3Rows;
+		this.outputRows = outputRows;
+	}
+
+	void setFilterBytes(long filterBytes) {
+		this.filterBytes = filterBytes;
+	}
+
+	void setHashTable(long keys, long bytes) {
+		this.hashTableKeys = keys;
+		this.hashTableBytes = bytes;
+	}
+
+	/**
+	 * @return the metrics of the bloom filter.
+	 */
+	public BloomFilterMetrics filter() {
+		return filter;
+	}
+
+	/**
+	 * @return the recorded phases, in order.
+	 */
+	public List<Phase> phases() {
+		return phases;
+	}
+
+	public String getFilterType() {
+		return filterType;
+	}
+
+	public String getJoinMethod() {
+		return joinMethod;
+	}
+
+	public long getR1Rows() {
+		return r1Rows;
+	}
+
+	public long getR2Rows() {
+		return r2Rows;
+	}
+
+	public long getR3Rows() {
+		return r3Rows;
+	}
+
+	public long getOutputRows() {
+		return outputRows;
+	}
+
+	/**
+	 * @return the fraction of the rows of R2 sent back in R3.
+	 */
+	public double getR3Selectivity() {
+		return r2Rows == 0 ? 0 : (double) r3Rows / r2Rows;
+	}
+
+	public long getFilterBytes() {
+		return filterBytes;
+	}
+
+	public long getHashTableKeys() {
+		return hashTableKeys;
+	}
+
+	public long getHashTableBytes() {
+		return hashTableBytes;
+	}
+
+	public long getTotalMillis() {
+		long millis = 0;
+		for (Phase phase : phases) {
+			millis += phase.millis;
+		}
+		return millis;
+	}
+
+	/**
+	 * @return one line per phase: name, ms, rows, bytes, rows/s.
+	 */
+	public String[] getPhases() {
+		String[] lines = new String[phases.size()];
+		for (int i = 0; i < lines.length; i++) {
+			Phase phase = phases.get(i);
+			lines[i] = String.format(Locale.ROOT, "%s %d ms %d rows %d bytes %.0f rows/s", phase.name, phase.millis,
+					phase.rows, phase.bytes, phase.rowsPerSecond());
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the metrics as a JSON object.
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"filterType\": \"").append(filterType).append("\",\n");
+		sb.append("  \"joinMethod\": \"").append(joinMethod).append("\",\n");
+		sb.append("  \"r1Rows\": ").append(r1Rows).append(",\n");
+		sb.append("  \"r2Rows\": ").append(r2Rows).append(",\n");
+		sb.append("  \"r3Rows\": ").append(r3Rows).append(",\n");
+		sb.append("  \"outputRows\": ").append(outputRows).append(",\n");
+		sb.append("  \"r3Selectivity\": ").append(number(getR3Selectivity())).append(",\n");
+		sb.append("  \"filterBytes\": ").append(filterBytes).append(",\n");
+		sb.append("  \"hashTableKeys\": ").append(hashTableKeys).append(",\n");
+		sb.append("  \"hashTableBytes\": ").append(hashTableBytes).append(",\n");
+		sb.append("  \"totalMillis\": ").append(getTotalMillis()).append(",\n");
+		sb.append("  \"phases\": [");
+		for (int i = 0; i < phases.size(); i++) {
+			Phase phase = phases.get(i);
+			sb.append(i == 0 ? "\n" : ",\n");
+			sb.append("    {\"name\": \"").append(phase.name).append("\", \"millis\": ").append(phase.millis)
+					.append(", \"rows\": ").append(phase.rows).append(", \"bytes\": ").append(phase.bytes)
+					.append(", \"rowsPerSecond\": ").append(number(phase.rowsPerSecond())).append("}");
+		}
+		sb.append("\n  ],\n");
+		sb.append("  \"filter\": ").append(filter == null ? "null" : filter.toJson()).append("\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * A number for JSON, null if it is infinite or NaN.
+	 */
+	static String number(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+		return String.format(Locale.ROOT, "%.6g", value);
+	}
+
+	/**
+	 * Register the metrics and the metrics of the filter in the platform
+	 * MBean server, in place of the ones of a previous join.
+	 *
+	 * @throws JMException
+	 */
+	public void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		register(server, this, MBEAN_NAME);
+		if (filter != null)
+			register(server, filter, FILTER_MBEAN_NAME);
+	}
+
+	private static void register(MBeanServer server, Object mbean, String name) throws JMException {
+		ObjectName objectName = new ObjectName(name);
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		server.registerMBean(mbean, objectName);
+	}
+
+	/**
+	 * A finished phase of the join.
+	 */
+	public static class Phase {
+		public final String name;
+		public final long millis;
+		public final long rows;
+		public final long bytes;
+
+		Phase(String name, long millis, long rows, long bytes) {
+			this.name = name;
+			this.millis = millis;
+			this.rows = rows;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * @return the rows read per second, 0 for a phase of 0 ms.
+		 */
+		public double rowsPerSecond() {
+			return millis == 0 ? 0 : rows * 1000.0 / millis;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+/**
+ * JMX view of a BloomJoinMetrics: the sizes of the relations and the time,
+ * rows and bytes of each phase of the bloom join.
+ *
+ * @author Yan Deng
+ *
+ */
+public interface BloomJoinMetricsMBean {
+	public String getFilterType();
+	public String getJoinMethod();
+	public long getR1Rows();
+	public long getR2Rows();
+	public long getR3Rows();
+	public long getOutputRows();
+	public double getR3Selectivity();
+	public long getFilterBytes();
+	public long getHashTableKeys();
+	public long getHashTableBytes();
+	public long getTotalMillis();
+	public String[] getPhases();
+}
@@ -0,0 +1,115 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Server 2 of the bloom join as a separate process. It holds relation 2 and
+ * listens on a loopback TCP port. For each connection of server 1 (a
+ * BloomJoin with Options.server2 set):
+ * server 1 sends the serialized bloom filter of R1 (BloomFilterSerializer);
+ * server 2 builds R3 in a temp file, and answers with a header (HEADER bytes:
+ * size of R2 in bytes, lines of R2, lines of R3, size of R3 in bytes) followed
+ * by R3, sent with FileChannel.transferTo (zero copy).
+ *
+ * Usage: java BloomJoinServer2 port file2
+ *
+ * @author Yan Deng
+ *
+ */
+public class BloomJoinServer2 {
+	static final int HEADER = 32; // bytes of the answer header
+
+	private final File relation2;
+	private final ServerSocketChannel server;
+
+	/**
+	 * Listen on the loopback address.
+	 *
+	 * @param relation2
+	 *            file of relation 2
+	 * @param port
+	 *            the port, 0 for any free port
+	 * @throws IOException
+	 */
+	public BloomJoinServer2(File relation2, int port) throws IOException {
+		this.relation2 = relation2;
+		this.server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	}
+
+	/**
+	 * @return the address server 1 connects to.
+	 */
+	public InetSocketAddress address() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * Wait for server 1 and answer one bloom join request.
+	 *
+	 * @throws IOException
+	 */
+	public void serveOne() throws IOException {
+		File r3 = File.createTempFile("r3-", ".txt");
+		try (SocketChannel socket = server.accept()) {
+			BloomFilter bf = BloomFilterSerializer.read(socket);
+			int[] counts;
+			try (OutputStream writer = new BufferedOutputStream(new FileOutputStream(r3), 1 << 16)) {
+				counts = BloomJoin.filterR2(bf, relation2, writer);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			header.putLong(relation2.length()).putLong(counts[0]).putLong(counts[1]).putLong(r3.length());
+			header.flip();
+			while (header.hasRemaining()) {
+				socket.write(header);
+			}
+			try (RandomAccessFile file = new RandomAccessFile(r3, "r")) {
+				FileChannel channel = file.getChannel();
+				long position = 0;
+				long size = channel.size();
+				while (position < size) {
+					position += channel.transferTo(position, size - position, socket);
+				}
+			}
+		} finally {
+			r3.delete();
+		}
+	}
+
+	public void close() throws IOException {
+		server.close();
+	}
+
+	/**
+	 * Run server 2 until it is killed.
+	 *
+	 * @param args
+	 *            port, file of relation 2
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			throw new IllegalArgumentException("Usage: java BloomJoinServer2 port file2");
+		}
+		BloomJoinServer2 server2 = new BloomJoinServer2(new File(args[1]), Integer.parseInt(args[0]));
+		System.out.println("Server 2 is listening on " + server2.address() + " with R2 " + args[1] + ".");
+		while (true) {
+			try {
+				server2.serveOne();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+	}
+}
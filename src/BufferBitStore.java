@@ -0,0 +1,76 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Bit storage in a list of ByteBuffers. A ByteBuffer is indexed by an int, so
+ * the words are split into chunks of 2^27 words (1 GB) each.
+ *
+ * @author Yan Deng
+ *
+ */
+public abstract class BufferBitStore implements BitStore {
+	protected static final int CHUNK_SHIFT = 27; // 2^27 words per chunk
+	protected static final long CHUNK_WORDS = 1L << CHUNK_SHIFT;
+	private static final long CHUNK_MASK = CHUNK_WORDS - 1;
+
+	protected final long numBits;
+	protected final long numWords;
+	protected ByteBuffer[] chunks;
+
+	protected BufferBitStore(long numBits) {
+		if (numBits <= 0) {
+			throw new IllegalArgumentException("The number of bits should be positive.");
+		}
+		this.numBits = numBits;
+		this.numWords = (numBits + 63) >>> 6;
+		this.chunks = new ByteBuffer[(int) ((numWords + CHUNK_MASK) >>> CHUNK_SHIFT)];
+	}
+
+	/**
+	 * The number of words stored in given chunk.
+	 *
+	 * @param chunk
+	 * @return the number of words of the chunk
+	 */
+	protected long chunkWords(int chunk) {
+		return Math.min(CHUNK_WORDS, numWords - ((long) chunk << CHUNK_SHIFT));
+	}
+
+	public long size() {
+		return numBits;
+	}
+
+	public void set(long index) {
+		long wordIndex = index >>> 6;
+		setWord(wordIndex, getWord(wordIndex) | (1L << index));
+	}
+
+	public boolean get(long index) {
+		return (getWord(index >>> 6) & (1L << index)) != 0;
+	}
+
+	public long numWords() {
+		return numWords;
+	}
+
+	public long getWord(long wordIndex) {
+		return chunks[(int) (wordIndex >>> CHUNK_SHIFT)].getLong((int) (wordIndex & CHUNK_MASK) << 3);
+	}
+
+	public void setWord(long wordIndex, long word) {
+		chunks[(int) (wordIndex >>> CHUNK_SHIFT)].putLong((int) (wordIndex & CHUNK_MASK) << 3, word);
+	}
+
+	public long cardinality() {
+		long count = 0;
+		for (long i = 0; i < numWords; i++) {
+			count += Long.bitCount(getWord(i));
+		}
+		return count;
+	}
+
+	public void clear() {
+		for (long i = 0; i < numWords; i++) {
+			setWord(i, 0L);
+		}
+	}
+}
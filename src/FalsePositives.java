@@ -1,22 +1,37 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
 import java.text.NumberFormat;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 /**
- * Evaluate the false probability rate of both the filters—BloomFilterDet,
- * BloomFilterRan.
+ * Evaluate the false probability rate of the filters—BloomFilterDet,
+ * BloomFilterRan and BloomFilterBlocked.
  * 
  * @author YAN Deng
  *
  */
 public class FalsePositives {
+	private static final int CHUNK = 1 << 16; // test strings per task of the parallel evaluation
+	private static final double Z = 1.96; // 95% confidence intervals
+	private static final String[] NAMES = { "det", "ran", "blocked" };
+
 	private BloomFilterDet bloomFilterDet;
 	private BloomFilterRan bloomFilterRan;
-	private HashSet<String> hashSet; //to compare with the bloomFilter hash tables;
+	private BloomFilterBlocked bloomFilterBlocked;
+	private HashSet<String> hashSet; //to compare with the bloomFilter hash tables; null for disjoint sets
 	private int setSize; // set size
 	private final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+	// first characters of the sample and test strings without hashSet: the two sets are disjoint
+	private final String sampleFirst = "ABCDEFGHIJKLMabcdefghijklm";
+	private final String testFirst = "NOPQRSTUVWXYZnopqrstuvwxyz";
 	private Random rand;
-	private double[] result = new double[2];//store the false positive rate of bloomFilterDet and bloomFilterRan
+	private double[] result = new double[3];//store the false positive rate of bloomFilterDet, bloomFilterRan and bloomFilterBlocked
 
 	/**
 	 * Constructor: Initialize a FalsePositives instance, define the set Size
@@ -26,10 +41,29 @@ public class FalsePositives {
 	 * @param bitsPerElement
 	 */
 	public FalsePositives(int setSize, int bitsPerElement) {
+		this(setSize, bitsPerElement, false);
+	}
+
+	/**
+	 * Constructor: Initialize a FalsePositives instance, define the set Size
+	 * and bits Per Element. With disjoint, the sample strings start with a
+	 * letter in A-M (or a-m) and the test strings with a letter in N-Z (or
+	 * n-z), so a test string is never in the sample set and no HashSet is
+	 * needed: the memory is used by the filters only, and the set size can be
+	 * 10^8 or more (a HashSet of 10^8 strings of 10 characters takes about 10
+	 * GB). The other characters are drawn from the whole alphabet.
+	 * 
+	 * @param setSize
+	 * @param bitsPerElement
+	 * @param disjoint
+	 *            true: disjoint sample and test strings instead of the HashSet
+	 */
+	public FalsePositives(int setSize, int bitsPerElement, boolean disjoint) {
 		System.out.println("Creating a new FalsePositives instance...");
 		bloomFilterDet = new BloomFilterDet(setSize, bitsPerElement);
 		bloomFilterRan = new BloomFilterRan(setSize, bitsPerElement);
-		hashSet = new HashSet<String>();
+		bloomFilterBlocked = new BloomFilterBlocked(setSize, bitsPerElement);
+		hashSet = disjoint ? null : new HashSet<String>();
 		this.setSize = setSize;
 		rand = new Random();
 	}
@@ -53,13 +87,13 @@ public class FalsePositives {
 
 	/**
 	 * Create a random sample set with given length of string, build the
-	 * BloomFilterDet and BloomFilterRan tables. And create a random test set,
-	 * test the false positive values of the two methods.
+	 * BloomFilterDet, BloomFilterRan and BloomFilterBlocked tables. And create
+	 * a random test set, test the false positive values of the three methods.
 	 * 
 	 * @param lengthOfString
 	 * @param testSize
-	 * @return false positive values of the two methods. arr[0]: det;
-	 *         arr[1]:ran.
+	 * @return false positive values of the three methods. arr[0]: det;
+	 *         arr[1]:ran; arr[2]:blocked.
 	 */
 	public double[] falsePositive(int lengthOfString, int testSize) {
 		if (setSize <= 0 || lengthOfString <= 0)
@@ -69,52 +103,205 @@ public class FalsePositives {
 
 		int countOfDetFP = 0; // Count of Deterministic method's false positives
 		int countOfRanFP = 0; // Count of Random method's false positives
+		int countOfBlockedFP = 0; // Count of Blocked method's false positives
 		int countOfTest = 0; // Count of total tested strings
 		String testString;
 
 		do {
-			testString = randomString(lengthOfString);
-			if (!hashSet.contains(testString)) {
+			testString = randomString(lengthOfString, false);
+			if (hashSet == null || !hashSet.contains(testString)) {
 				if (bloomFilterDet.appears(testString))
 					countOfDetFP++;
 				if (bloomFilterRan.appears(testString))
 					countOfRanFP++;
+				if (bloomFilterBlocked.appears(testString))
+					countOfBlockedFP++;
 			}
 			countOfTest++;
 		} while (countOfTest <= testSize);
 		double detFP = (double) countOfDetFP / countOfTest;
 		double ranFP = (double) countOfRanFP / countOfTest;
+		double blockedFP = (double) countOfBlockedFP / countOfTest;
 		result[0] = detFP;
 		result[1] = ranFP;
+		result[2] = blockedFP;
 		return result;
 	}
 
+	/**
+	 * Same as falsePositive(), but the test strings are generated and tested
+	 * in parallel: the test is cut into tasks of CHUNK strings run by a
+	 * ForkJoinPool, and each task has its own SplittableRandom, split from
+	 * one root generator before the tasks start, so the tasks share nothing
+	 * but the (read only) filters and hashSet. Only the strings which are not
+	 * in the set are counted, so the rate is false positives / negatives.
+	 * 
+	 * @param lengthOfString
+	 * @param testSize
+	 *            the number of test strings, up to 10^9 and more
+	 * @param threads
+	 *            the number of threads
+	 * @return the false positives of the three methods, arr[0]: det;
+	 *         arr[1]:ran; arr[2]:blocked; and arr[3]: the number of tested
+	 *         strings which are not in the set.
+	 */
+	public long[] falsePositiveParallel(int lengthOfString, long testSize, int threads) {
+		if (setSize <= 0 || lengthOfString <= 0)
+			throw new IllegalArgumentException("sample Size & length of string must be positive integer.");
+		createTables(lengthOfString);
+		final BloomFilter[] filters = { bloomFilterDet, bloomFilterRan, bloomFilterBlocked };
+		int chunks = (int) ((testSize + CHUNK - 1) / CHUNK);
+		final SplittableRandom[] rands = new SplittableRandom[chunks];
+		SplittableRandom root = new SplittableRandom();
+		for (int c = 0; c < chunks; c++) {
+			rands[c] = root.split();
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			return pool.submit(() -> IntStream.range(0, chunks).parallel().mapToObj(c -> {
+				long size = Math.min(CHUNK, testSize - (long) c * CHUNK);
+				return testChunk(filters, lengthOfString, size, rands[c]);
+			}).reduce(new long[4], FalsePositives::sum)).get();
+		} catch (InterruptedException | ExecutionException ex) {
+			throw new IllegalStateException("The parallel evaluation failed.", ex);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Test the given number of random strings.
+	 * 
+	 * @return the false positives of each filter, then the number of strings
+	 *         which are not in the set.
+	 */
+	private long[] testChunk(BloomFilter[] filters, int lengthOfString, long size, SplittableRandom random) {
+		long[] counts = new long[filters.length + 1];
+		char[] chars = new char[lengthOfString];
+		String first = hashSet == null ? testFirst : alphabet;
+		for (long i = 0; i < size; i++) {
+			chars[0] = first.charAt(random.nextInt(first.length()));
+			for (int j = 1; j < lengthOfString; j++) {
+				chars[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+			}
+			String testString = new String(chars).toLowerCase();
+			if (hashSet != null && hashSet.contains(testString))
+				continue;
+			counts[filters.length]++;
+			for (int f = 0; f < filters.length; f++) {
+				if (filters[f].appears(testString))
+					counts[f]++;
+			}
+		}
+		return counts;
+	}
+
+	private static long[] sum(long[] a, long[] b) {
+		long[] sum = new long[a.length];
+		for (int i = 0; i < a.length; i++) {
+			sum[i] = a[i] + b[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * Evaluate the false positive rates in parallel for every combination of
+	 * the given set sizes and bits per element, and write one CSV line per
+	 * filter and combination: the measured rate with its 95% confidence
+	 * interval (Wilson score interval, which stays inside [0, 1] when there
+	 * are few false positives) and the theoretical rate of theoreticalRate().
+	 * The lines are also printed.
+	 * 
+	 * @param setSizes
+	 * @param bitsPerElements
+	 * @param lengthOfString
+	 * @param testSize
+	 *            the number of test strings of each combination
+	 * @param threads
+	 * @param disjoint
+	 *            true: disjoint sample and test strings instead of the HashSet,
+	 *            for large set sizes
+	 * @param csvFile
+	 *            name of the CSV file
+	 * @throws IOException
+	 */
+	public static void runSweep(int[] setSizes, int[] bitsPerElements, int lengthOfString, long testSize, int threads,
+			boolean disjoint, String csvFile) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile));
+		String header = "filter,setSize,bitsPerElement,k,filterSize,negatives,falsePositives,rate,low,high,theory";
+		writer.write(header + "\n");
+		System.out.println(header);
+		for (int setSize : setSizes) {
+			for (int bitsPerElement : bitsPerElements) {
+				FalsePositives exp = new FalsePositives(setSize, bitsPerElement, disjoint);
+				long[] counts = exp.falsePositiveParallel(lengthOfString, testSize, threads);
+				BloomFilter[] filters = { exp.bloomFilterDet, exp.bloomFilterRan, exp.bloomFilterBlocked };
+				long negatives = counts[filters.length];
+				for (int f = 0; f < filters.length; f++) {
+					double[] interval = wilsonInterval(counts[f], negatives);
+					String line = String.format("%s,%d,%d,%d,%d,%d,%d,%.6g,%.6g,%.6g,%.6g", NAMES[f], setSize,
+							bitsPerElement, filters[f].numHashes(), filters[f].filterSize(), negatives, counts[f],
+							(double) counts[f] / negatives, interval[0], interval[1], theoreticalRate(filters[f]));
+					writer.write(line + "\n");
+					System.out.println(line);
+				}
+				writer.flush();
+			}
+		}
+		writer.close();
+	}
+
+	/**
+	 * The Wilson score interval of a rate measured as successes / trials.
+	 * 
+	 * @param successes
+	 * @param trials
+	 * @return the low and high bounds of the 95% confidence interval
+	 */
+	static double[] wilsonInterval(long successes, long trials) {
+		if (trials == 0)
+			return new double[] { 0, 1 };
+		double p = (double) successes / trials;
+		double z2 = Z * Z / trials;
+		double center = (p + z2 / 2) / (1 + z2);
+		double half = Z * Math.sqrt(p * (1 - p) / trials + z2 / (4.0 * trials)) / (1 + z2);
+		return new double[] { Math.max(0, center - half), Math.min(1, center + half) };
+	}
+
 	/**
 	 * Create a random sample set with given length of string, build the
-	 * BloomFilterDet and BloomFilterRan tables.
+	 * BloomFilterDet, BloomFilterRan and BloomFilterBlocked tables.
 	 * 
 	 * @param lengthOfString
 	 */
 	private void createTables(int lengthOfString) {
 		for (int i = 0; i < setSize; i++) {
-			String s = randomString(lengthOfString);
+			String s = randomString(lengthOfString, true);
 			s = s.toLowerCase();
 			bloomFilterDet.add(s);
 			bloomFilterRan.add(s);
-			hashSet.add(s);
+			bloomFilterBlocked.add(s);
+			if (hashSet != null)
+				hashSet.add(s);
 		}
 	}
 
 	/**
 	 * Generate a random string with given length of String using the characters
-	 * in the defined alphabet.
+	 * in the defined alphabet. Without hashSet, the first character of a
+	 * sample string is in sampleFirst and the one of a test string in
+	 * testFirst.
 	 * 
 	 * @param lengthOfString
+	 * @param sample
+	 *            true: a string of the sample set; false: a test string
 	 * @return a random string
 	 */
-	private String randomString(int lengthOfString) {
+	private String randomString(int lengthOfString, boolean sample) {
 		StringBuilder sb = new StringBuilder(lengthOfString);
-		for (int i = 0; i < lengthOfString; i++) {
+		String first = hashSet != null ? alphabet : sample ? sampleFirst : testFirst;
+		sb.append(first.charAt(rand.nextInt(first.length())));
+		for (int i = 1; i < lengthOfString; i++) {
 			sb.append(alphabet.charAt(rand.nextInt(alphabet.length())));
 		}
 		return sb.toString();
@@ -137,8 +324,58 @@ public class FalsePositives {
 	private void showResult(int bitsPerElement) {
 		System.out.printf("%nTheoretically, the false positive probability is %.2f%%.%n",
 				Math.pow(0.618, bitsPerElement) * 100);
-		System.out.printf("BloomFilter deterministic: %.2f%%; BloomFilter random: %.2f%%.%n", result[0] * 100,
-				result[1] * 100);
+		System.out.printf("BloomFilter deterministic: %.2f%%; BloomFilter random: %.2f%%; BloomFilter blocked: %.2f%%.%n",
+				result[0] * 100, result[1] * 100, result[2] * 100);
+		// the theory for the actual size and number of hash functions of each filter
+		System.out.printf("With their k and table size, the theory gives: deterministic %.2f%% (k=%d); random %.2f%% (k=%d).%n",
+				theoreticalRate(bloomFilterDet) * 100, bloomFilterDet.numHashes(),
+				theoreticalRate(bloomFilterRan) * 100, bloomFilterRan.numHashes());
+	}
+
+	/**
+	 * The false positive probability of a standard bloom filter with
+	 * independent hash functions: (1-e^(-kn/m))^k, where m is the size of the
+	 * table, n the number of elements added and k the number of hash
+	 * functions. For a BloomFilterBlocked, see blockedRate().
+	 * 
+	 * @param bf
+	 * @return the theoretical false positive probability of the filter
+	 */
+	public static double theoreticalRate(BloomFilter bf) {
+		if (bf instanceof BloomFilterBlocked) {
+			return blockedRate(bf.numHashes(), bf.dataSize(), bf.filterSize() / BloomFilterBlocked.BLOCK_BITS);
+		}
+		double k = bf.numHashes();
+		return Math.pow(1 - Math.exp(-k * bf.dataSize() / bf.filterSize()), k);
+	}
+
+	/**
+	 * The false positive probability of a blocked bloom filter: the number of
+	 * elements in the block of a test string is Poisson with mean λ = n /
+	 * blocks, and a block of j elements is a standard filter of 512 bits, so
+	 * the rate is the sum over j of Poisson(j; λ) * (1-e^(-kj/512))^k. The
+	 * blocks which are fuller than the mean make it higher than the standard
+	 * rate of the same table size.
+	 * 
+	 * @param k
+	 *            the number of hash functions
+	 * @param n
+	 *            the number of elements added
+	 * @param blocks
+	 *            the number of blocks of 512 bits
+	 * @return the theoretical false positive probability of the filter
+	 */
+	static double blockedRate(int k, long n, long blocks) {
+		double lambda = (double) n / blocks;
+		// the terms beyond λ + 20√λ + 50 are negligible
+		int last = (int) Math.ceil(lambda + 20 * Math.sqrt(lambda) + 50);
+		double logPoisson = -lambda; // log Poisson(j; λ), in logs as e^(-λ) underflows for large λ
+		double rate = 0;
+		for (int j = 1; j <= last; j++) {
+			logPoisson += Math.log(lambda / j);
+			rate += Math.exp(logPoisson) * Math.pow(1 - Math.exp(-(double) k * j / BloomFilterBlocked.BLOCK_BITS), k);
+		}
+		return rate;
 	}
 
 }
@@ -0,0 +1,112 @@
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The bloom filters whose positions come from the FNV64 and FNV32 hash values
+ * of a string (BloomFilterDet, BloomFilterConcurrent, BloomFilterCounting and
+ * BloomFilterBlocked). The string is hashed here, once, either as a lower case
+ * String or as ASCII bytes turned to lower case while hashing, and the
+ * subclass sets or checks the positions of the two hash values.
+ *
+ * @author Yan Deng
+ *
+ */
+public abstract class FnvBloomFilter implements BloomFilter {
+
+	/**
+	 * Add a string given by its hash values.
+	 *
+	 * @param fnv64
+	 *            FNV64 of the lower case string
+	 * @param fnv32
+	 *            FNV32 of the lower case string
+	 */
+	abstract void addHash(long fnv64, int fnv32);
+
+	/**
+	 * @param fnv64
+	 *            FNV64 of the lower case string
+	 * @param fnv32
+	 *            FNV32 of the lower case string
+	 * @return true if the string of these hash values appears in the filter
+	 */
+	abstract boolean appearsHash(long fnv64, int fnv32);
+
+	/**
+	 * Adds the string s to the filter. This method should be case-insensitive.
+	 * For example, it should not distinguish between “Galaxy” and “galaxy”.
+	 *
+	 * @param s
+	 *            The input string
+	 */
+	public void add(String s) {
+		s = s.toLowerCase();
+		addHash(FnvHash.fnv64(s), FnvHash.fnv32(s));
+	}
+
+	/**
+	 * Adds the string of the UTF-8 bytes buf[off, off+len), the same as
+	 * add(String) but without creating any String: ASCII letters are turned
+	 * to lower case while hashing. Other bytes go through add(String).
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 */
+	public void add(byte[] buf, int off, int len) {
+		if (!FnvHash.isAscii(buf, off, len)) {
+			add(new String(buf, off, len, StandardCharsets.UTF_8));
+			return;
+		}
+		addHash(FnvHash.fnv64Lower(buf, off, len), FnvHash.fnv32Lower(buf, off, len));
+	}
+
+	/**
+	 * Returns true if s appears in the filter; otherwise returns false. This
+	 * method must also be case-insensitive.
+	 *
+	 * @param s
+	 *            The query String
+	 * @return true if s appears in the filter false otherwise
+	 */
+	public boolean appears(String s) {
+		s = s.toLowerCase();
+		if (s.length() == 0) {
+			throw new IllegalArgumentException("Querry string should not be empty.");
+		}
+		return appearsHash(FnvHash.fnv64(s), FnvHash.fnv32(s));
+	}
+
+	/**
+	 * Returns true if the string of the UTF-8 bytes buf[off, off+len) appears
+	 * in the filter, the same as appears(String) but without creating any
+	 * String.
+	 *
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return true if the string appears in the filter false otherwise
+	 */
+	public boolean appears(byte[] buf, int off, int len) {
+		if (len == 0) {
+			throw new IllegalArgumentException("Querry string should not be empty.");
+		}
+		if (!FnvHash.isAscii(buf, off, len)) {
+			return appears(new String(buf, off, len, StandardCharsets.UTF_8));
+		}
+		return appearsHash(FnvHash.fnv64Lower(buf, off, len), FnvHash.fnv32Lower(buf, off, len));
+	}
+
+	/**
+	 * Compute the hash value of given string using FNV method.
+	 *
+	 * @param s
+	 *            given string
+	 * @param fnv
+	 *            32: using FNV32; 64: using FNV64
+	 * @return hash value in BigInteger type
+	 */
+	public BigInteger computeHashValue(String s, int fnv) {
+		return FnvHash.bigHash(s, fnv);
+	}
+}
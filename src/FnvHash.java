@@ -0,0 +1,194 @@
+import java.math.BigInteger;
+
+/**
+ * FNV-1a hash functions (FNV32 and FNV64) computed with primitive arithmetic.
+ * The multiplication wraps around naturally, which is the same as the
+ * %(2^32) and %(2^64) steps of the BigInteger version, so the results are
+ * bit-for-bit identical without allocating any object per character.
+ *
+ * @author Yan Deng
+ *
+ */
+public final class FnvHash {
+	public static final long FNV64INIT = 0xcbf29ce484222325L;
+	public static final long FNV64PRIME = 0x100000001b3L;
+	public static final int FNV32INIT = 0x811c9dc5;
+	public static final int FNV32PRIME = 0x01000193;
+
+	private FnvHash() {
+	}
+
+	/**
+	 * Compute the FNV64 hash value of given characters.
+	 *
+	 * @param s
+	 *            given characters
+	 * @return the 64 bits hash value (to be read as an unsigned long)
+	 */
+	public static long fnv64(CharSequence s) {
+		long h = FNV64INIT;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i); // XOR
+			h *= FNV64PRIME; // *FNV64PRIME%(2^64)
+		}
+		return h;
+	}
+
+	/**
+	 * Compute the FNV32 hash value of given characters.
+	 *
+	 * @param s
+	 *            given characters
+	 * @return the 32 bits hash value (to be read as an unsigned int)
+	 */
+	public static int fnv32(CharSequence s) {
+		int h = FNV32INIT;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i); // XOR
+			h *= FNV32PRIME; // *FNV32PRIME%(2^32)
+		}
+		return h;
+	}
+
+	/**
+	 * Compute the FNV64 hash value of ASCII bytes turned to lower case, the
+	 * same as fnv64(s.toLowerCase()) for the String s of these bytes.
+	 *
+	 * @param buf
+	 *            given bytes, all of them ASCII (see isAscii)
+	 * @param off
+	 * @param len
+	 * @return the 64 bits hash value (to be read as an unsigned long)
+	 */
+	public static long fnv64Lower(byte[] buf, int off, int len) {
+		long h = FNV64INIT;
+		for (int i = off; i < off + len; i++) {
+			int c = buf[i];
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			h ^= c;
+			h *= FNV64PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * Compute the FNV32 hash value of ASCII bytes turned to lower case, the
+	 * same as fnv32(s.toLowerCase()) for the String s of these bytes.
+	 *
+	 * @param buf
+	 *            given bytes, all of them ASCII (see isAscii)
+	 * @param off
+	 * @param len
+	 * @return the 32 bits hash value (to be read as an unsigned int)
+	 */
+	public static int fnv32Lower(byte[] buf, int off, int len) {
+		int h = FNV32INIT;
+		for (int i = off; i < off + len; i++) {
+			int c = buf[i];
+			if (c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			h ^= c;
+			h *= FNV32PRIME;
+		}
+		return h;
+	}
+
+	/**
+	 * The first of the K double hashing indexes (FNV64(s)+FNV32(s)*i)%m of a
+	 * string, as in BloomFilterDet; the next ones are given by nextIndex().
+	 *
+	 * @param fnv64
+	 *            FNV64(s)
+	 * @param m
+	 *            the size of the table
+	 * @return FNV64(s)%m, FNV64(s) read as an unsigned long
+	 */
+	public static long index(long fnv64, long m) {
+		return Long.remainderUnsigned(fnv64, m);
+	}
+
+	/**
+	 * @param fnv32
+	 *            FNV32(s)
+	 * @param m
+	 *            the size of the table
+	 * @return the double hashing step, FNV32(s)%m, FNV32(s) read as an
+	 *         unsigned int
+	 */
+	public static long step(int fnv32, long m) {
+		return (fnv32 & 0xffffffffL) % m;
+	}
+
+	/**
+	 * Move to the next double hashing index, (h+step)%m.
+	 *
+	 * @param h
+	 *            current index, below m
+	 * @param step
+	 *            the step of step(), below m
+	 * @param m
+	 *            the size of the table
+	 * @return the next index
+	 */
+	public static long nextIndex(long h, long step, long m) {
+		h += step;
+		if (h >= m)
+			h -= m;
+		return h;
+	}
+
+	/**
+	 * Compute the K double hashing indexes of given characters into hs.
+	 *
+	 * @param s
+	 *            given characters
+	 * @param m
+	 *            the size of the table
+	 * @param hs
+	 *            array of at least k elements to store the indexes
+	 * @param k
+	 *            the number of indexes
+	 */
+	public static void indexes(CharSequence s, long m, long[] hs, int k) {
+		long h = index(fnv64(s), m);
+		long step = step(fnv32(s), m);
+		for (int i = 0; i < k; i++) {
+			hs[i] = h;
+			h = nextIndex(h, step, m);
+		}
+	}
+
+	/**
+	 * Compute the hash value of given characters as the BigInteger version
+	 * did.
+	 *
+	 * @param s
+	 *            given characters
+	 * @param fnv
+	 *            32: using FNV32; 64: using FNV64
+	 * @return hash value in BigInteger type
+	 */
+	public static BigInteger bigHash(CharSequence s, int fnv) {
+		if (fnv == 32) {
+			return BigInteger.valueOf(fnv32(s) & 0xffffffffL);
+		} else if (fnv == 64) {
+			return new BigInteger(Long.toUnsignedString(fnv64(s)));
+		} else {
+			String ex = "The value of 2nd argument of computeHashValue method can be only 32 or 64.";
+			throw new IllegalArgumentException(ex);
+		}
+	}
+
+	/**
+	 * @return true if all the bytes are ASCII, i.e. each byte is one
+	 *         character of the UTF-8 string.
+	 */
+	public static boolean isAscii(byte[] buf, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (buf[i] < 0)
+				return false;
+		}
+		return true;
+	}
+}
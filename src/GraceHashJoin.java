@@ -0,0 +1,254 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hash join of R1 and R3 within a memory budget (Grace hash join). If the
+ * hash table of the smaller relation does not fit in the budget, both
+ * relations are split by a hash of the key into FANOUT partition files, and
+ * each pair of partitions is joined in turn, with the same method: a
+ * partition which is still too large is partitioned again with other bits of
+ * the hash.
+ *
+ * While the build side is partitioned, a bloom filter of the keys of each
+ * partition is built, and the probe rows which do not appear in the filter of
+ * their partition are not written at all. A partition pair with an empty side
+ * is skipped.
+ *
+ * After MAX_DEPTH levels (a skewed partition, e.g. a single key with many
+ * rows, can not be split by hashing), the build partition is loaded in chunks
+ * which fit the budget and the probe partition is read once per chunk.
+ *
+ * The output has the columns R1 e1, R1 e2, R3 e2.
+ *
+ * @author Yan Deng
+ *
+ */
+public class GraceHashJoin {
+	private static final int FANOUT = 16; // partitions per level
+	private static final int BITS = 4; // log2(FANOUT), hash bits used per level
+	private static final int MAX_DEPTH = 4; // levels of partitioning
+	private static final int TABLE_FACTOR = 2; // bytes of hash table per byte of relation
+	private static final double PARTITION_FPR = 0.01; // false positive rate of the partition filters
+	private static final byte[] SEPARATOR = "   ".getBytes(StandardCharsets.US_ASCII);
+
+	private final long memoryBudget; // bytes for a hash table
+	private final File spillDirectory; // null: the default temp directory
+	private long rows = 0; // rows written
+	private int partitions = 0; // partition pairs joined
+	private int tables = 0; // hash tables built
+	private long skippedProbes = 0; // probe rows dropped by the partition filters
+	private long tableKeys = 0; // keys of the largest hash table
+	private long tableBytes = 0; // bytes of the largest hash table
+
+	/**
+	 * @param memoryBudget
+	 *            the maximum size in bytes of a hash table, Long.MAX_VALUE
+	 *            for an in-memory join
+	 * @param spillDirectory
+	 *            the directory of the partition files, null for the default
+	 *            temp directory
+	 */
+	public GraceHashJoin(long memoryBudget, File spillDirectory) {
+		if (memoryBudget <= 0) {
+			throw new IllegalArgumentException("The memory budget should be positive.");
+		}
+		this.memoryBudget = memoryBudget;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Join R1 and R3 and write the result.
+	 *
+	 * @param r1
+	 *            relation 1
+	 * @param r3
+	 *            relation 3, received from server 2
+	 * @param out
+	 *            destination of the joined rows
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	public long join(File r1, File r3, OutputStream out) throws IOException {
+		join(r1, r3, out, 0);
+		if (tables > 1) {
+			System.out.println("Joined " + partitions + " partition pairs with " + tables
+					+ " hash tables, the partition filters dropped " + skippedProbes + " probe rows.");
+		}
+		return rows;
+	}
+
+	/**
+	 * Join R1 with an R3 which is already in a hash table, e.g. received batch
+	 * by batch from server 2. R1 is streamed.
+	 *
+	 * @param r3Table
+	 *            the rows of relation 3
+	 * @param r1
+	 *            relation 1
+	 * @param out
+	 *            destination of the joined rows
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	public long join(JoinHashTable r3Table, File r1, OutputStream out) throws IOException {
+		probe(r3Table, r1, false, out);
+		return rows;
+	}
+
+	/**
+	 * @return the number of keys of the largest hash table built.
+	 */
+	public long hashTableKeys() {
+		return tableKeys;
+	}
+
+	/**
+	 * @return the size in bytes of the largest hash table built.
+	 */
+	public long hashTableBytes() {
+		return tableBytes;
+	}
+
+	private void join(File r1, File r3, OutputStream out, int depth) throws IOException {
+		// the hash table is built on the smaller relation, the larger one is streamed
+		boolean buildR1 = r1.length() < r3.length();
+		File build = buildR1 ? r1 : r3;
+		File probe = buildR1 ? r3 : r1;
+		if (build.length() * TABLE_FACTOR <= memoryBudget || depth == MAX_DEPTH) {
+			joinInMemory(build, probe, buildR1, out);
+			return;
+		}
+
+		File[] buildParts = new File[FANOUT];
+		File[] probeParts = new File[FANOUT];
+		BloomFilter[] filters = new BloomFilter[FANOUT];
+		long capacity = Math.max(1024, build.length() / FANOUT / 16);
+		for (int p = 0; p < FANOUT; p++) {
+			buildParts[p] = File.createTempFile("build" + depth + "-", ".txt", spillDirectory);
+			probeParts[p] = File.createTempFile("probe" + depth + "-", ".txt", spillDirectory);
+			filters[p] = new BloomFilterScalable(capacity, PARTITION_FPR);
+		}
+		try {
+			partition(build, buildParts, filters, depth, true);
+			partition(probe, probeParts, filters, depth, false);
+			for (int p = 0; p < FANOUT; p++) {
+				if (buildParts[p].length() == 0 || probeParts[p].length() == 0)
+					continue;
+				partitions++;
+				if (buildR1) {
+					join(buildParts[p], probeParts[p], out, depth + 1);
+				} else {
+					join(probeParts[p], buildParts[p], out, depth + 1);
+				}
+			}
+		} finally {
+			for (int p = 0; p < FANOUT; p++) {
+				buildParts[p].delete();
+				probeParts[p].delete();
+			}
+		}
+	}
+
+	/**
+	 * Split a relation into partition files by the hash bits of the given
+	 * level. The keys of the build side are added to the filters; a probe row
+	 * is written only if its key appears in the filter of its partition.
+	 */
+	private void partition(File relation, File[] parts, BloomFilter[] filters, int depth, boolean isBuild)
+			throws IOException {
+		OutputStream[] writers = new OutputStream[FANOUT];
+		for (int p = 0; p < FANOUT; p++) {
+			writers[p] = new BufferedOutputStream(new FileOutputStream(parts[p]), 1 << 16);
+		}
+		try {
+			RelationReader reader = new RelationReader(relation);
+			while (reader.next()) {
+				int p = partitionOf(reader.key(), depth);
+				if (isBuild) {
+					filters[p].add(reader.buffer(), reader.keyOffset(), reader.keyLength());
+				} else if (!filters[p].appears(reader.buffer(), reader.keyOffset(), reader.keyLength())) {
+					skippedProbes++;
+					continue;
+				}
+				writers[p].write(reader.buffer(), reader.lineOffset(), reader.lineLength());
+				writers[p].write('\n');
+			}
+			reader.close();
+		} finally {
+			for (OutputStream writer : writers) {
+				writer.close();
+			}
+		}
+	}
+
+	/**
+	 * The partition of a key at a given level: the FNV64 of the key is mixed,
+	 * and each level uses its own BITS bits, so that a partition is split
+	 * again at the next level.
+	 */
+	static int partitionOf(CharSequence key, int depth) {
+		long h = FnvHash.fnv64(key);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) (h >>> (64 - BITS * (depth + 1))) & (FANOUT - 1);
+	}
+
+	/**
+	 * Join with a hash table of the build relation. If the table exceeds the
+	 * budget, it is joined with the probe relation and cleared, and the rest
+	 * of the build relation is loaded.
+	 */
+	private void joinInMemory(File build, File probe, boolean buildR1, OutputStream out) throws IOException {
+		RelationReader buildReader = new RelationReader(build);
+		boolean more = buildReader.next();
+		while (more) {
+			JoinHashTable table = new JoinHashTable();
+			do {
+				table.put(buildReader.buffer(), buildReader.keyOffset(), buildReader.keyLength(),
+						buildReader.valueOffset(), buildReader.valueLength());
+				more = buildReader.next();
+			} while (more && table.memoryBytes() <= memoryBudget);
+			if (table.memoryBytes() > tableBytes) {
+				tableKeys = table.numKeys();
+				tableBytes = table.memoryBytes();
+			}
+			if (tables++ == 0) {
+				System.out.println("The hash table of " + (buildR1 ? "R1" : "R3") + " holds " + table.numKeys()
+						+ " keys in " + table.memoryBytes() + " bytes.");
+			}
+			probe(table, probe, buildR1, out);
+		}
+		buildReader.close();
+	}
+
+	private void probe(JoinHashTable table, File probe, boolean buildR1, OutputStream out) throws IOException {
+		RelationReader reader = new RelationReader(probe);
+		while (reader.next()) {
+			byte[] line = reader.buffer();
+			byte[] values = table.arena();
+			for (int row = table.find(line, reader.keyOffset(), reader.keyLength()); row >= 0; row = table
+					.nextRow(row)) {
+				// the columns are always R1 e1, R1 e2, R3 e2
+				out.write(line, reader.keyOffset(), reader.keyLength());
+				out.write(SEPARATOR);
+				if (buildR1) {
+					out.write(values, table.valueOffset(row), table.valueLength(row));
+					out.write(SEPARATOR);
+					out.write(line, reader.valueOffset(), reader.valueLength());
+				} else {
+					out.write(line, reader.valueOffset(), reader.valueLength());
+					out.write(SEPARATOR);
+					out.write(values, table.valueOffset(row), table.valueLength(row));
+				}
+				out.write('\n');
+				rows++;
+			}
+		}
+		reader.close();
+	}
+}
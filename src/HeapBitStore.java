@@ -0,0 +1,63 @@
+/**
+ * Bit storage in a long[] on the java heap. It can hold up to 2^37 bits.
+ *
+ * @author Yan Deng
+ *
+ */
+public class HeapBitStore implements BitStore {
+	private final long numBits;
+	private final long[] words;
+
+	/**
+	 * Create a heap bit storage with given number of bits, all cleared.
+	 *
+	 * @param numBits
+	 */
+	public HeapBitStore(long numBits) {
+		long numWords = (numBits + 63) >>> 6;
+		if (numBits <= 0 || numWords > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("A heap bit storage can not hold " + numBits + " bits.");
+		}
+		this.numBits = numBits;
+		this.words = new long[(int) numWords];
+	}
+
+	public long size() {
+		return numBits;
+	}
+
+	public void set(long index) {
+		words[(int) (index >>> 6)] |= 1L << index;
+	}
+
+	public boolean get(long index) {
+		return (words[(int) (index >>> 6)] & (1L << index)) != 0;
+	}
+
+	public long numWords() {
+		return words.length;
+	}
+
+	public long getWord(long wordIndex) {
+		return words[(int) wordIndex];
+	}
+
+	public void setWord(long wordIndex, long word) {
+		words[(int) wordIndex] = word;
+	}
+
+	public long cardinality() {
+		long count = 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	public void clear() {
+		java.util.Arrays.fill(words, 0L);
+	}
+
+	public void close() {
+	}
+}
@@ -1,5 +1,26 @@
 import static org.junit.Assert.*;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
 import org.junit.Test;
 
 public class JUnitTest {
@@ -13,4 +34,692 @@ public class JUnitTest {
 	public void testNextPrime(){
 		assertEquals("12's next prime should be 13.",13,BloomFilterDet.nextPrime(12));
 	}
+
+	@Test
+	public void testDetHashValuesMatchBigInteger() {
+		BloomFilterDet bf = new BloomFilterDet(1000, 10);
+		for (String s : new String[] { "a", "galaxy", "relation1", "zzzzzzzzzzzzzzzzzzzz" }) {
+			assertArrayEquals("Primitive FNV should match the BigInteger version for " + s,
+					Benchmarks.legacyHashValues(s, bf.numHashes(), bf.filterSize()), bf.computeHashValues(s));
+		}
+	}
+
+	@Test
+	public void testMappedFilterReopen() throws IOException {
+		File file = File.createTempFile("bloom", ".bf");
+		file.deleteOnExit();
+		BloomFilterDet bf = BloomFilterDet.create(file, 1000, 10);
+		bf.add("Galaxy");
+		bf.bitStore.close();
+		BloomFilterDet reopened = BloomFilterDet.open(file);
+		assertTrue("galaxy should appear in the reopened filter.", reopened.appears("galaxy"));
+		assertEquals("The reopened filter should keep its data size.", 1, reopened.dataSize());
+		assertEquals("The reopened filter should keep its size.", bf.filterSize(), reopened.filterSize());
+		reopened.bitStore.close();
+	}
+
+	@Test
+	public void testSerializeFilter() throws IOException {
+		BloomFilterRan bf = new BloomFilterRan(1000, 10);
+		bf.add("Galaxy");
+		for (boolean compress : new boolean[] { false, true }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			long bytes = BloomFilterSerializer.write(bf, Channels.newChannel(out), compress);
+			assertEquals("The returned size should be the written size.", out.size(), bytes);
+			BloomFilter received = BloomFilterSerializer.read(
+					Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+			assertTrue("galaxy should appear in the received filter.", received.appears("galaxy"));
+			assertArrayEquals("The received filter should use the same hash functions.",
+					bf.computeHashValues("relation"), received.computeHashValues("relation"));
+		}
+	}
+
+	@Test
+	public void testSerializeCompressedInChunks() throws IOException {
+		// several sub-filters, each deflated to more than one 64 KB chunk
+		BloomFilterScalable bf = new BloomFilterScalable(100000, 0.01);
+		String[] keys = Benchmarks.randomKeys(300000, 10, new Random(11));
+		for (String key : keys)
+			bf.add(key);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long bytes = BloomFilterSerializer.write(bf, Channels.newChannel(out), true);
+		assertEquals("The returned size should be the written size.", out.size(), bytes);
+		byte[] serialized = out.toByteArray();
+		BloomFilter received = BloomFilterSerializer
+				.read(Channels.newChannel(new ByteArrayInputStream(serialized)));
+		for (String key : keys)
+			assertTrue(key + " should appear in the received filter.", received.appears(key));
+
+		// the first chunk length of a det filter follows its header and params
+		out = new ByteArrayOutputStream();
+		BloomFilterSerializer.write(new BloomFilterDet(1000, 10), Channels.newChannel(out), true);
+		serialized = out.toByteArray();
+		ByteBuffer.wrap(serialized).order(ByteOrder.LITTLE_ENDIAN)
+				.putInt(32 + 4 * serialized[12], -1); // 32 bytes of header
+		try {
+			BloomFilterSerializer.read(Channels.newChannel(new ByteArrayInputStream(serialized)));
+			fail("A corrupt chunk length should be reported.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("chunk length"));
+		}
+	}
+
+	@Test
+	public void testSerializeRejectsMalformedScalable() throws IOException {
+		ByteArrayOutputStream scalable = new ByteArrayOutputStream();
+		BloomFilterSerializer.write(new BloomFilterScalable(1000, 0.01), Channels.newChannel(scalable), false);
+		// the header of a chain of one sub-filter (32 bytes and 5 parameters), then a random filter
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(scalable.toByteArray(), 0, 32 + 4 * 5);
+		BloomFilterSerializer.write(new BloomFilterRan(1000, 10), Channels.newChannel(out), false);
+		try {
+			BloomFilterSerializer.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+			fail("A sub-filter which is not a BloomFilterDet should be reported.");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("sub-filter"));
+		}
+	}
+
+	@Test
+	public void testConcurrentFilterMatchesDet() {
+		final BloomFilterConcurrent bf = new BloomFilterConcurrent(1000, 10);
+		final String[] keys = Benchmarks.randomKeys(1000, 8, new Random(1));
+		Benchmarks.runSlices(4, keys.length, (from, to) -> {
+			for (int i = from; i < to; i++)
+				bf.add(keys[i]);
+		});
+		BloomFilterDet det = new BloomFilterDet(1000, 10);
+		for (String key : keys) {
+			det.add(key);
+			assertTrue(key + " should appear in the concurrent filter.", bf.appears(key));
+		}
+		assertEquals("All the adds should be counted.", keys.length, bf.dataSize());
+		assertEquals("Both filters should set the same bits.", det.bitStore.cardinality(), bf.bitStore.cardinality());
+	}
+
+	@Test
+	public void testUnionOfPartialFilters() {
+		String[] keys = Benchmarks.randomKeys(1000, 8, new Random(2));
+		BloomFilterDet full = new BloomFilterDet(1000, 10);
+		BloomFilterDet first = new BloomFilterDet(1000, 10);
+		BloomFilterDet second = new BloomFilterDet(1000, 10);
+		for (int i = 0; i < keys.length; i++) {
+			full.add(keys[i]);
+			(i % 2 == 0 ? first : second).add(keys[i]);
+		}
+		first.union(second);
+		assertEquals("The union should count all the data.", full.dataSize(), first.dataSize());
+		for (long i = 0; i < full.bitStore.numWords(); i++) {
+			assertEquals("The union should have the bits of the full filter.", full.bitStore.getWord(i),
+					first.bitStore.getWord(i));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnionOfDifferentSizes() {
+		new BloomFilterDet(1000, 10).union(new BloomFilterDet(2000, 10));
+	}
+
+	@Test
+	public void testRelationReaderRanges() throws IOException {
+		File file = File.createTempFile("relation", ".txt");
+		file.deleteOnExit();
+		FileWriter writer = new FileWriter(file);
+		writer.write("a1 b1\r\n\nkey2\tvalue2\n  key3   value3 extra\nkey4 value4");
+		writer.close();
+		RelationReader reader = new RelationReader(file);
+		assertTrue(reader.next());
+		assertEquals("a1", reader.keyString());
+		assertEquals("b1", reader.valueString());
+		assertTrue(reader.next());
+		assertEquals("key2", reader.key().toString());
+		assertTrue(reader.next());
+		assertEquals("key3", reader.keyString());
+		assertEquals("value3", reader.valueString());
+		assertTrue(reader.next());
+		assertEquals("value4", reader.valueString());
+		assertFalse(reader.next());
+		reader.close();
+		for (long split = 0; split <= file.length(); split++) {
+			int count = 0;
+			for (long[] range : new long[][] { { 0, split }, { split, file.length() } }) {
+				reader = new RelationReader(file, range[0], range[1]);
+				while (reader.next())
+					count++;
+				reader.close();
+			}
+			assertEquals("Each line should be read once when splitting at " + split + ".", 4, count);
+		}
+	}
+
+	@Test
+	public void testRelationReaderViewsDecodeUtf8() throws IOException {
+		File file = File.createTempFile("relation", ".txt");
+		file.deleteOnExit();
+		Files.write(file.toPath(), "Zürich Genève\nkey2 value2\n".getBytes(StandardCharsets.UTF_8));
+		RelationReader reader = new RelationReader(file);
+		assertTrue(reader.next());
+		assertEquals("The key view should be decoded as the key string.", reader.keyString(), reader.key().toString());
+		assertEquals(6, reader.key().length());
+		assertEquals('ü', reader.key().charAt(1));
+		assertEquals("The view should hash as the key string.", FnvHash.fnv64(reader.keyString()), FnvHash.fnv64(reader.key()));
+		assertEquals("Genève", reader.value().toString());
+		assertTrue(reader.next());
+		assertEquals("An ASCII key should be read from the buffer.", 4, reader.key().length());
+		assertEquals("key2", reader.key().toString());
+		reader.close();
+	}
+
+	@Test
+	public void testScalableFilterKeepsTargetRate() throws IOException {
+		BloomFilterScalable bf = new BloomFilterScalable(1000, 0.01);
+		String[] keys = Benchmarks.randomKeys(20000, 10, new Random(3));
+		for (String key : keys) {
+			bf.add(key);
+		}
+		assertEquals(keys.length, bf.dataSize());
+		assertTrue("The filter should have grown.", bf.subFilters().size() > 1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BloomFilterSerializer.write(bf, Channels.newChannel(out), true);
+		BloomFilter received = BloomFilterSerializer
+				.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+		int falsePositives = 0;
+		String[] tests = Benchmarks.randomKeys(20000, 11, new Random(4));
+		for (int i = 0; i < keys.length; i++) {
+			assertTrue(keys[i] + " should appear in the received filter.", received.appears(keys[i]));
+			if (received.appears(tests[i]))
+				falsePositives++;
+		}
+		assertTrue("The false positive rate should stay below the target.", falsePositives < 0.015 * tests.length);
+	}
+
+	@Test
+	public void testScalableUnionKeepsTargetRate() throws IOException {
+		String[] keys = Benchmarks.randomKeys(16000, 10, new Random(9));
+		BloomFilterScalable[] partials = new BloomFilterScalable[4];
+		for (int t = 0; t < partials.length; t++) {
+			partials[t] = new BloomFilterScalable(2000, 0.01);
+			for (int i = t * 500; i < (t + 1) * 500; i++) {
+				partials[t].add(keys[i]); // a quarter of the capacity of the first sub-filter
+			}
+		}
+		for (int t = 1; t < partials.length; t++) {
+			partials[0].union(partials[t]);
+		}
+		assertEquals("The partials should be merged into the first level.", Arrays.asList(0), partials[0].levels());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BloomFilterSerializer.write(partials[0], Channels.newChannel(out), false);
+		BloomFilterScalable received = (BloomFilterScalable) BloomFilterSerializer
+				.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+		assertEquals("The levels should be sent.", partials[0].levels(), received.levels());
+		int falsePositives = 0;
+		String[] tests = Benchmarks.randomKeys(20000, 11, new Random(10));
+		for (int i = 0; i < 2000; i++) {
+			assertTrue(keys[i] + " should appear in the merged filter.", received.appears(keys[i]));
+		}
+		for (String test : tests) {
+			if (received.appears(test))
+				falsePositives++;
+		}
+		assertTrue("The false positive rate should stay below the target.", falsePositives < 0.015 * tests.length);
+
+		// 4000 keys fill the first level (2000) and half of the second (4000)
+		BloomFilterScalable full = new BloomFilterScalable(2000, 0.01);
+		BloomFilterScalable other = new BloomFilterScalable(2000, 0.01);
+		for (int i = 0; i < 4000; i++) {
+			full.add(keys[i]);
+			other.add(keys[4000 + i]);
+		}
+		assertFalse(full.fits(other));
+		try {
+			full.union(other);
+			fail("A union which overflows a level should be rejected.");
+		} catch (IllegalArgumentException e) {
+			assertEquals("A rejected union should not change the filter.", 4000, full.dataSize());
+		}
+		BloomFilterScalable empty = new BloomFilterScalable(2000, 0.01);
+		empty.union(full);
+		assertEquals(Arrays.asList(0, 1), empty.levels());
+		for (int i = 8000; i < 12000; i++) {
+			empty.add(keys[i]);
+		}
+		assertEquals("The next sub-filter should take the level after the last one.", Arrays.asList(0, 1, 2),
+				empty.levels());
+		assertEquals(4000, empty.subFilters().get(1).dataSize());
+	}
+
+	@Test
+	public void testCountingFilterRemove() {
+		BloomFilterCounting bf = new BloomFilterCounting(1000, 10);
+		String[] keys = Benchmarks.randomKeys(1000, 8, new Random(5));
+		for (String key : keys) {
+			bf.add(key);
+		}
+		for (int i = 0; i < keys.length; i += 2) {
+			assertTrue(keys[i] + " should be removed.", bf.remove(keys[i]));
+		}
+		assertEquals(keys.length / 2, bf.dataSize());
+		BloomFilterDet det = new BloomFilterDet(1000, 10);
+		for (int i = 1; i < keys.length; i += 2) {
+			det.add(keys[i]);
+			assertTrue(keys[i] + " should still appear.", bf.appears(keys[i]));
+		}
+		BloomFilterDet shipped = bf.toBloomFilterDet();
+		for (long i = 0; i < det.bitStore.numWords(); i++) {
+			assertEquals("The shipped filter should equal a filter built from the remaining keys.",
+					det.bitStore.getWord(i), shipped.bitStore.getWord(i));
+		}
+	}
+
+	@Test
+	public void testJoinHashTableDuplicates() {
+		JoinHashTable table = new JoinHashTable();
+		HashMap<String, List<String>> expected = new HashMap<String, List<String>>();
+		Random rand = new Random(9);
+		for (int i = 0; i < 20000; i++) {
+			byte[] line = ("k" + rand.nextInt(5000) + " v" + i).getBytes(StandardCharsets.US_ASCII);
+			int space = new String(line).indexOf(' ');
+			table.put(line, 0, space, space + 1, line.length - space - 1);
+			expected.computeIfAbsent(new String(line, 0, space), key -> new ArrayList<String>())
+					.add(new String(line, space + 1, line.length - space - 1));
+		}
+		assertEquals(20000, table.size());
+		assertEquals(expected.size(), table.numKeys());
+		for (Map.Entry<String, List<String>> e : expected.entrySet()) {
+			byte[] key = e.getKey().getBytes(StandardCharsets.US_ASCII);
+			List<String> values = new ArrayList<String>();
+			for (int row = table.find(key, 0, key.length); row >= 0; row = table.nextRow(row)) {
+				values.add(new String(table.arena(), table.valueOffset(row), table.valueLength(row)));
+			}
+			assertEquals("The values should be kept in insertion order.", e.getValue(), values);
+		}
+		byte[] missing = "K1".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(-1, table.find(missing, 0, missing.length));
+	}
+
+	@Test
+	public void testGraceHashJoinWithinBudget() throws IOException {
+		File r1 = File.createTempFile("r1-", ".txt");
+		File r3 = File.createTempFile("r3-", ".txt");
+		r1.deleteOnExit();
+		r3.deleteOnExit();
+		Random rand = new Random(3);
+		Benchmarks.writeRelation(r1, 20000, rand);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(r1, true));
+		writer.write("k7 x\n");
+		writer.close();
+		writer = new BufferedWriter(new FileWriter(r3));
+		for (int i = 0; i < 10000; i++) {
+			// a skewed key which can not be split by partitioning
+			writer.write((i % 2 == 0 ? "k7" : "k" + rand.nextInt(100000)) + " w" + i + "\n");
+		}
+		writer.close();
+		ByteArrayOutputStream inMemory = new ByteArrayOutputStream();
+		long rows = new GraceHashJoin(Long.MAX_VALUE, null).join(r1, r3, inMemory);
+		assertTrue(rows > 5000);
+		ByteArrayOutputStream spilled = new ByteArrayOutputStream();
+		assertEquals(rows, new GraceHashJoin(100000, null).join(r1, r3, spilled));
+		String[] expected = inMemory.toString().split("\n");
+		String[] actual = spilled.toString().split("\n");
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		assertTrue("The partitioned join should give the same rows.", Arrays.equals(expected, actual));
+	}
+
+	@Test
+	public void testPipelineBuildsTableOnSmallerRelation() throws Exception {
+		File r1 = File.createTempFile("r1-", ".txt");
+		File r2 = File.createTempFile("r2-", ".txt");
+		File out = File.createTempFile("out-", ".txt");
+		r1.deleteOnExit();
+		r2.deleteOnExit();
+		out.deleteOnExit();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(r1));
+		for (int i = 0; i < 100; i++) {
+			writer.write("k" + i + " v" + i + "\n");
+		}
+		writer.close();
+		writer = new BufferedWriter(new FileWriter(r2));
+		for (int i = 0; i < 20000; i++) {
+			writer.write("k" + (i % 200) + " w" + i + "\n"); // R3 is much larger than R1
+		}
+		writer.close();
+		String[] results = new String[2];
+		long[] tableBytes = new long[2];
+		for (int run = 0; run < 2; run++) {
+			BloomJoin.Options options = new BloomJoin.Options();
+			options.exactSetSize = true;
+			options.pipelineR3 = run == 0;
+			BloomJoinMetrics metrics = BloomJoin.runBloomJoin(r1.getPath(), r2.getPath(), out.getPath(), "det", options);
+			assertEquals(10000, metrics.getOutputRows());
+			tableBytes[run] = metrics.getHashTableBytes();
+			String[] lines = new String(Files.readAllBytes(out.toPath())).split("\n");
+			Arrays.sort(lines);
+			results[run] = String.join("\n", lines);
+		}
+		assertEquals("The pipeline should give the same rows.", results[1], results[0]);
+		assertEquals("The pipeline should build the table on R1, as the join of TEMPFILE does.", tableBytes[1],
+				tableBytes[0]);
+	}
+
+	@Test
+	public void testTwoProcessJoinMatchesInProcess() throws Exception {
+		File r1 = File.createTempFile("r1-", ".txt");
+		File r2 = File.createTempFile("r2-", ".txt");
+		File out = File.createTempFile("out-", ".txt");
+		r1.deleteOnExit();
+		r2.deleteOnExit();
+		out.deleteOnExit();
+		Random rand = new Random(12);
+		Benchmarks.writeRelation(r1, 2000, rand);
+		Benchmarks.writeRelation(r2, 20000, rand);
+		BloomJoin.Options options = new BloomJoin.Options();
+		options.exactSetSize = true;
+		options.pipelineR3 = false;
+		BloomJoinMetrics local = BloomJoin.runBloomJoin(r1.getPath(), r2.getPath(), out.getPath(), "det", options);
+		long r3Bytes = new File("temp.txt").length();
+		String[] expected = new String(Files.readAllBytes(out.toPath())).split("\n");
+
+		final BloomJoinServer2 server2 = new BloomJoinServer2(r2, 0);
+		Thread serving = new Thread(() -> {
+			try {
+				server2.serveOne();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		});
+		serving.start();
+		options = new BloomJoin.Options();
+		options.exactSetSize = true;
+		options.server2 = server2.address();
+		BloomJoinMetrics remote;
+		try {
+			remote = BloomJoin.runBloomJoin(r1.getPath(), null, out.getPath(), "det", options);
+			serving.join();
+		} finally {
+			server2.close();
+		}
+		String[] actual = new String(Files.readAllBytes(out.toPath())).split("\n");
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		assertTrue("The two-process join should give the same rows.", Arrays.equals(expected, actual));
+		assertEquals(local.getR2Rows(), remote.getR2Rows());
+		assertEquals(local.getR3Rows(), remote.getR3Rows());
+		assertEquals(local.getFilterBytes(), remote.getFilterBytes());
+		BloomJoinMetrics.Phase exchange = null;
+		for (BloomJoinMetrics.Phase phase : remote.phases()) {
+			if (phase.name.equals("exchangeWithServer2"))
+				exchange = phase;
+		}
+		assertEquals("The filter, the answer header and R3 should be counted.",
+				remote.getFilterBytes() + BloomJoinServer2.HEADER + r3Bytes, exchange.bytes);
+	}
+
+	@Test
+	public void testTwoProcessJoinFailsWhenServer2Closes() throws Exception {
+		File r1 = File.createTempFile("r1-", ".txt");
+		r1.deleteOnExit();
+		Benchmarks.writeRelation(r1, 100, new Random(13));
+		final ServerSocketChannel server2 = ServerSocketChannel.open();
+		server2.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		Thread closing = new Thread(() -> {
+			try {
+				server2.accept().close(); // before answering
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		});
+		closing.start();
+		BloomJoin.Options options = new BloomJoin.Options();
+		options.server2 = (InetSocketAddress) server2.getLocalAddress();
+		try {
+			BloomJoin.runBloomJoin(r1.getPath(), null, File.createTempFile("out-", ".txt").getPath(), "det", options);
+			fail("A failed exchange with server 2 should stop the join.");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		} finally {
+			closing.join();
+			server2.close();
+		}
+		assertFalse("No stale R3 should be left.", new File("temp.txt").exists());
+	}
+
+	@Test
+	public void testJoinFailsWhenR2CanNotBeRead() throws Exception {
+		File r1 = File.createTempFile("r1-", ".txt");
+		r1.deleteOnExit();
+		Benchmarks.writeRelation(r1, 100, new Random(14));
+		File missing = new File(r1.getPath() + ".missing");
+		for (boolean pipeline : new boolean[] { true, false }) {
+			BloomJoin.Options options = new BloomJoin.Options();
+			options.pipelineR3 = pipeline;
+			try {
+				BloomJoin.runBloomJoin(r1.getPath(), missing.getPath(), File.createTempFile("out-", ".txt").getPath(),
+						"det", options);
+				fail("A failed R3 should stop the join, pipelineR3=" + pipeline + ".");
+			} catch (IllegalStateException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+			assertFalse("No partial R3 should be left.", new File("temp.txt").exists());
+		}
+	}
+
+	@Test
+	public void testSortMergeJoinMatchesHashJoin() throws IOException {
+		File r1 = File.createTempFile("r1-", ".txt");
+		File r3 = File.createTempFile("r3-", ".txt");
+		r1.deleteOnExit();
+		r3.deleteOnExit();
+		Random rand = new Random(4);
+		Benchmarks.writeRelation(r1, 20000, rand);
+		Benchmarks.writeRelation(r3, 20000, rand);
+		ByteArrayOutputStream hashed = new ByteArrayOutputStream();
+		long rows = new GraceHashJoin(Long.MAX_VALUE, null).join(r1, r3, hashed);
+		assertTrue(rows > 1000);
+		ByteArrayOutputStream merged = new ByteArrayOutputStream();
+		// a small budget to merge several runs
+		assertEquals(rows, new SortMergeJoin(100000, null).join(r1, r3, merged));
+		String[] expected = hashed.toString().split("\n");
+		String[] actual = merged.toString().split("\n");
+		Arrays.sort(expected);
+		Arrays.sort(actual);
+		assertTrue("The sort-merge join should give the same rows.", Arrays.equals(expected, actual));
+	}
+
+	@Test
+	public void testBatchAppearsMatchesAppears() {
+		String[] keys = Benchmarks.randomKeys(3000, 6, new Random(6));
+		BloomFilter[] filters = { new BloomFilterDet(1000, 4), new BloomFilterConcurrent(1000, 4),
+				new BloomFilterBlocked(1000, 4) };
+		for (BloomFilter bf : filters) {
+			for (int i = 0; i < 1000; i++) {
+				bf.add(keys[3 * i]);
+			}
+			long[] result = new long[(keys.length + 63) / 64];
+			Arrays.fill(result, -1L); // the result must be overwritten
+			bf.appears(keys, keys.length, result);
+			for (int i = 0; i < keys.length; i++) {
+				assertEquals(keys[i], bf.appears(keys[i]), (result[i >>> 6] & 1L << i) != 0);
+			}
+		}
+	}
+
+	@Test
+	public void testByteSlicesMatchStrings() {
+		String[] keys = { "Key42", "key42", "ABCxyz", "Zürich", "zÜRICH", "k1", "MiXeD_09" };
+		BloomFilter[] filters = { new BloomFilterDet(100, 8), new BloomFilterConcurrent(100, 8),
+				new BloomFilterBlocked(100, 8), new BloomFilterCounting(100, 8), new BloomFilterScalable(100, 8) };
+		for (BloomFilter bf : filters) {
+			BloomFilter byString = bf instanceof BloomFilterScalable ? new BloomFilterScalable(100, 8) : null;
+			byte[] buf = ("##" + String.join(" ", keys)).getBytes(StandardCharsets.UTF_8);
+			int[] offsets = new int[keys.length];
+			int[] lengths = new int[keys.length];
+			int off = 2;
+			for (int i = 0; i < keys.length; i++) {
+				offsets[i] = off;
+				lengths[i] = keys[i].getBytes(StandardCharsets.UTF_8).length;
+				off += lengths[i] + 1;
+			}
+			// add the even keys as bytes, probe all of them as strings and as bytes
+			for (int i = 0; i < keys.length; i += 2) {
+				bf.add(buf, offsets[i], lengths[i]);
+				if (byString != null)
+					byString.add(keys[i]);
+			}
+			long[] result = new long[1];
+			bf.appears(buf, offsets, lengths, keys.length, result);
+			for (int i = 0; i < keys.length; i++) {
+				boolean expected = bf.appears(keys[i]);
+				assertEquals(keys[i], expected, bf.appears(buf, offsets[i], lengths[i]));
+				assertEquals(keys[i], expected, (result[0] & 1L << i) != 0);
+				if (i % 2 == 0 || keys[i].equalsIgnoreCase(keys[i - 1]))
+					assertTrue(keys[i] + " should appear.", expected);
+				if (byString != null)
+					assertEquals(keys[i], byString.appears(keys[i]), expected);
+			}
+		}
+	}
+
+	@Test
+	public void testRandomFunctionsFromSeed() {
+		BloomFilterRan bf = new BloomFilterRan(new HeapBitStore(100003), 7, 42L);
+		BloomFilterRan same = new BloomFilterRan(new HeapBitStore(100003), 7, 42L);
+		assertArrayEquals("The same seed should give the same hash functions.", bf.computeHashValues("relation"),
+				same.computeHashValues("relation"));
+		long[] hs = bf.computeHashValues("relation");
+		assertTrue("The first hash function should not be degenerate.", hs[0] != hs[1]);
+
+		String[] keys = Benchmarks.randomKeys(10000, 10, new Random(7));
+		for (String key : keys) {
+			bf.add(key);
+		}
+		assertEquals("add() should count the elements.", keys.length, bf.dataSize());
+		int fp = 0;
+		String[] tests = Benchmarks.randomKeys(100000, 11, new Random(8));
+		for (String test : tests) {
+			if (bf.appears(test))
+				fp++;
+		}
+		// about 0.38%, 380 +- 20 expected
+		double theory = FalsePositives.theoreticalRate(bf);
+		assertEquals("The false positive rate should match the theory.", theory, (double) fp / tests.length, theory / 4);
+	}
+
+	@Test
+	public void testBlockedTheoreticalRate() {
+		BloomFilterBlocked bf = new BloomFilterBlocked(10000, 10);
+		for (String key : Benchmarks.randomKeys(10000, 10, new Random(9))) {
+			bf.add(key);
+		}
+		int fp = 0;
+		String[] tests = Benchmarks.randomKeys(200000, 11, new Random(10));
+		for (String test : tests) {
+			if (bf.appears(test))
+				fp++;
+		}
+		double theory = FalsePositives.theoreticalRate(bf);
+		double standard = Math.pow(1 - Math.exp(-7.0 * bf.dataSize() / bf.filterSize()), 7);
+		assertTrue("The uneven blocks should cost more than a standard filter.", theory > standard * 1.1);
+		// about 0.95% in theory, 1.2% measured: the positions of a block are not independent
+		assertEquals("The false positive rate should be close to the theory.", theory, (double) fp / tests.length,
+				theory / 3);
+		assertEquals("An empty filter has no false positive.", 0.0, FalsePositives.blockedRate(7, 0, 10), 0.0);
+	}
+
+	@Test
+	public void testParallelFalsePositives() {
+		FalsePositives exp = new FalsePositives(10000, 10);
+		long[] counts = exp.falsePositiveParallel(10, 200000, 4);
+		assertTrue("Almost all test strings should be negatives.", counts[3] > 199000 && counts[3] <= 200000);
+		for (int f = 0; f < 3; f++) {
+			assertTrue("The false positive rate should be about 1%.", counts[f] > 0 && counts[f] < 0.02 * counts[3]);
+		}
+		double[] interval = FalsePositives.wilsonInterval(10, 1000);
+		assertTrue("The interval should contain the measured rate.", interval[0] < 0.01 && interval[1] > 0.01);
+		assertEquals("No false positive still gives a positive upper bound.", 0.0,
+				FalsePositives.wilsonInterval(0, 1000)[0], 0.0);
+	}
+
+	@Test
+	public void testDisjointFalsePositives() {
+		FalsePositives exp = new FalsePositives(10000, 10, true);
+		long[] counts = exp.falsePositiveParallel(10, 100000, 2);
+		assertEquals("All the test strings should be negatives.", 100000, counts[3]);
+		for (int f = 0; f < 3; f++) {
+			assertTrue("The false positive rate should be about 1%.", counts[f] > 0 && counts[f] < 0.02 * counts[3]);
+		}
+	}
+
+	@Test
+	public void testFilterMetrics() {
+		BloomFilterMetrics bf = new BloomFilterMetrics(new BloomFilterDet(10000, 10));
+		String[] keys = Benchmarks.randomKeys(20000, 10, new Random(10));
+		for (int i = 0; i < 10000; i++) {
+			bf.add(keys[i]);
+			bf.add(keys[i].toUpperCase()); // the same key again
+		}
+		assertEquals("Each add should be counted.", 20000, bf.adds());
+		assertEquals("The estimated cardinality should count distinct keys.", 10000, bf.estimatedCardinality(), 300);
+		double theory = BloomFilterSizing.falsePositiveRate(bf.filterSize(), 10000, bf.numHashes());
+		assertEquals("The estimated rate should match the theory.", theory, bf.estimatedFpr(), theory / 10);
+
+		long[] result = new long[(keys.length + 63) / 64];
+		bf.appears(keys, keys.length, result);
+		assertEquals("Each probe of the batch should be counted.", 20000, bf.probes());
+		assertTrue("The added keys should pass.", bf.positives() >= 10000 && bf.passRate() < 0.52);
+
+		BloomFilterCounting counting = new BloomFilterCounting(1000, 10);
+		for (int i = 0; i < 1000; i++) {
+			counting.add(keys[i]);
+		}
+		assertEquals("A counter which is not 0 is a bit set.", counting.toBloomFilterDet().bitsSet(), counting.bitsSet());
+	}
+
+	@Test
+	public void testFilterSizing() {
+		assertEquals("10 bits per element should use 7 hash functions.", 7, new BloomFilterDet(1000, 10).numHashes());
+		BloomFilterSizing sizing = BloomFilterSizing.forFpr(10000, 0.01);
+		assertTrue("The filter should reach the target rate.", sizing.fpr() <= 0.01);
+		assertEquals("1% should need about 9.6 bits per element.", 9.6, sizing.bitsPerElement(), 0.05);
+		assertEquals("A budget should give the size of the filter.", 8000, BloomFilterSizing.forBytes(1000, 1000).bits());
+
+		BloomFilterSizing small = BloomFilterSizing.minimizingCost(10000, 10000, 100);
+		BloomFilterSizing large = BloomFilterSizing.minimizingCost(10000, 10000000, 100);
+		assertTrue("A larger R2 should be worth a larger filter.", large.bits() > small.bits() && large.fpr() < small.fpr());
+
+		BloomFilter bf = BloomJoin.newFilter("blocked", sizing);
+		assertEquals("The blocked filter should be a whole number of blocks.", 0, bf.filterSize() % 512);
+		assertEquals("The filter should use the chosen k.", sizing.k(), bf.numHashes());
+	}
+
+	@Test
+	public void testStaticFilters() throws IOException {
+		String[] keys = Benchmarks.randomKeys(40000, 10, new Random(25));
+		BloomFilter[] filters = { new BloomFilterFuse(20000, 10), new BloomFilterCuckoo(20000, 10) };
+		for (BloomFilter bf : filters) {
+			BloomFilter partial = bf instanceof BloomFilterFuse ? new BloomFilterFuse(((BloomFilterFuse) bf).fingerprintBits())
+					: new BloomFilterCuckoo(((BloomFilterCuckoo) bf).numBuckets(), ((BloomFilterCuckoo) bf).fingerprintBits(),
+							((BloomFilterCuckoo) bf).seed());
+			for (int i = 0; i < 20000; i++) {
+				(i % 2 == 0 ? bf : partial).add(keys[i]);
+				bf.add(keys[i % 100].toUpperCase()); // duplicates
+			}
+			bf.union(partial);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			BloomFilterSerializer.write(bf, Channels.newChannel(out), false);
+			BloomFilter received = BloomFilterSerializer
+					.read(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())));
+			int falsePositives = 0;
+			for (int i = 0; i < 40000; i++) {
+				if (i < 20000) {
+					assertTrue("An added key should appear.", received.appears(keys[i]));
+				} else if (received.appears(keys[i])) {
+					falsePositives++;
+				}
+			}
+			assertEquals("The rate should match the estimate.", received.estimatedFpr(), falsePositives / 20000.0,
+					received.estimatedFpr() / 3);
+			assertTrue("The filter should use at most 10 bits per key.", received.filterSize() <= 10 * 20000 + 256);
+		}
+	}
 }
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Hash table for the join, mapping a key to the list of its values. The bytes
+ * of the keys and values are copied into one flat byte array (arena), the
+ * distinct keys are found by open addressing (linear probing), and the values
+ * of a key are chained by int indices. There is no object per key or per
+ * value, so a large R3 takes a few int arrays and its raw bytes.
+ *
+ * Keys are compared byte by byte, i.e. case-sensitive like the former
+ * HashMap&lt;String, ArrayList&lt;Pair&gt;&gt;.
+ *
+ * @author Yan Deng
+ *
+ */
+public class JoinHashTable {
+	private static final int NONE = -1;
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+	private byte[] arena = new byte[1 << 16]; // bytes of the keys and values
+	private int arenaSize = 0;
+
+	private int[] table = new int[1 << 10]; // key id + 1, 0 for an empty slot
+	private int mask = table.length - 1;
+
+	// one entry per distinct key
+	private int numKeys = 0;
+	private int[] keyHash = new int[256];
+	private int[] keyOffset = new int[256];
+	private int[] keyLength = new int[256];
+	private int[] firstRow = new int[256];
+	private int[] lastRow = new int[256];
+
+	// one entry per row (value)
+	private int numRows = 0;
+	private int[] valueOffset = new int[256];
+	private int[] valueLength = new int[256];
+	private int[] nextRow = new int[256];
+
+	/**
+	 * Add a (key, value) row. The bytes are copied, buf can be reused.
+	 *
+	 * @param buf
+	 *            buffer holding the key and the value
+	 * @param kOff
+	 *            offset of the key
+	 * @param kLen
+	 *            length of the key
+	 * @param vOff
+	 *            offset of the value
+	 * @param vLen
+	 *            length of the value
+	 */
+	public void put(byte[] buf, int kOff, int kLen, int vOff, int vLen) {
+		int hash = hash(buf, kOff, kLen);
+		int slot = hash & mask;
+		int key;
+		while (true) {
+			int id = table[slot] - 1;
+			if (id == NONE) {
+				key = addKey(buf, kOff, kLen, hash);
+				table[slot] = key + 1;
+				if (numKeys * 4 > table.length * 3)
+					rehash();
+				break;
+			}
+			if (keyHash[id] == hash && equals(id, buf, kOff, kLen)) {
+				key = id;
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (numRows == valueOffset.length) {
+			int n = grow(numRows);
+			valueOffset = Arrays.copyOf(valueOffset, n);
+			valueLength = Arrays.copyOf(valueLength, n);
+			nextRow = Arrays.copyOf(nextRow, n);
+		}
+		int row = numRows++;
+		valueOffset[row] = copy(buf, vOff, vLen);
+		valueLength[row] = vLen;
+		nextRow[row] = NONE;
+		if (firstRow[key] == NONE) {
+			firstRow[key] = row;
+		} else {
+			nextRow[lastRow[key]] = row;
+		}
+		lastRow[key] = row;
+	}
+
+	/**
+	 * Find a key.
+	 *
+	 * @param buf
+	 *            buffer holding the key
+	 * @param kOff
+	 *            offset of the key
+	 * @param kLen
+	 *            length of the key
+	 * @return the first row of the key, -1 if the key is not in the table
+	 */
+	public int find(byte[] buf, int kOff, int kLen) {
+		int hash = hash(buf, kOff, kLen);
+		int slot = hash & mask;
+		while (true) {
+			int id = table[slot] - 1;
+			if (id == NONE)
+				return NONE;
+			if (keyHash[id] == hash && equals(id, buf, kOff, kLen))
+				return firstRow[id];
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return the next row with the same key, -1 after the last one.
+	 */
+	public int nextRow(int row) {
+		return nextRow[row];
+	}
+
+	/**
+	 * The arena holding the values, valid until the next put().
+	 *
+	 * @return the arena
+	 */
+	public byte[] arena() {
+		return arena;
+	}
+
+	public int valueOffset(int row) {
+		return valueOffset[row];
+	}
+
+	public int valueLength(int row) {
+		return valueLength[row];
+	}
+
+	/**
+	 * @return the number of rows in the table.
+	 */
+	public int size() {
+		return numRows;
+	}
+
+	/**
+	 * @return the number of distinct keys in the table.
+	 */
+	public int numKeys() {
+		return numKeys;
+	}
+
+	/**
+	 * Write the rows of the table as lines "key separator value", key by key,
+	 * e.g. to spill a table which turned out to be too large to a relation
+	 * file.
+	 *
+	 * @param out
+	 *            destination of the rows
+	 * @param separator
+	 *            bytes between the key and the value
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, byte[] separator) throws IOException {
+		for (int key = 0; key < numKeys; key++) {
+			for (int row = firstRow[key]; row != NONE; row = nextRow[row]) {
+				out.write(arena, keyOffset[key], keyLength[key]);
+				out.write(separator);
+				out.write(arena, valueOffset[row], valueLength[row]);
+				out.write('\n');
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes used by the arrays of the table.
+	 */
+	public long memoryBytes() {
+		return arena.length + 4L * (table.length + 5L * keyHash.length + 3L * valueOffset.length);
+	}
+
+	private int addKey(byte[] buf, int kOff, int kLen, int hash) {
+		if (numKeys == keyHash.length) {
+			int n = grow(numKeys);
+			keyHash = Arrays.copyOf(keyHash, n);
+			keyOffset = Arrays.copyOf(keyOffset, n);
+			keyLength = Arrays.copyOf(keyLength, n);
+			firstRow = Arrays.copyOf(firstRow, n);
+			lastRow = Arrays.copyOf(lastRow, n);
+		}
+		int id = numKeys++;
+		keyHash[id] = hash;
+		keyOffset[id] = copy(buf, kOff, kLen);
+		keyLength[id] = kLen;
+		firstRow[id] = NONE;
+		return id;
+	}
+
+	/**
+	 * Copy bytes at the end of the arena.
+	 *
+	 * @return the offset of the bytes in the arena
+	 */
+	private int copy(byte[] buf, int off, int len) {
+		if (arenaSize + len > arena.length) {
+			if ((long) arenaSize + len > MAX_ARRAY) {
+				throw new IllegalStateException("R3 does not fit in a join hash table, use the grace hash join.");
+			}
+			arena = Arrays.copyOf(arena, (int) Math.max(arenaSize + len, Math.min(MAX_ARRAY, arena.length * 2L)));
+		}
+		System.arraycopy(buf, off, arena, arenaSize, len);
+		int offset = arenaSize;
+		arenaSize += len;
+		return offset;
+	}
+
+	private boolean equals(int id, byte[] buf, int kOff, int kLen) {
+		if (keyLength[id] != kLen)
+			return false;
+		int a = keyOffset[id];
+		for (int i = 0; i < kLen; i++) {
+			if (arena[a + i] != buf[kOff + i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Double the number of slots and insert the keys again.
+	 */
+	private void rehash() {
+		table = new int[table.length * 2];
+		mask = table.length - 1;
+		for (int id = 0; id < numKeys; id++) {
+			int slot = keyHash[id] & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = id + 1;
+		}
+	}
+
+	private static int grow(int n) {
+		if (n >= MAX_ARRAY)
+			throw new IllegalStateException("R3 does not fit in a join hash table, use the grace hash join.");
+		return (int) Math.min(MAX_ARRAY, n * 2L);
+	}
+
+	/**
+	 * FNV32 of the bytes of a key, with the high bits mixed into the low bits
+	 * used to choose the slot.
+	 */
+	static int hash(byte[] buf, int off, int len) {
+		int h = FnvHash.FNV32INIT;
+		for (int i = 0; i < len; i++) {
+			h ^= buf[off + i] & 0xff;
+			h *= FnvHash.FNV32PRIME;
+		}
+		return h ^ (h >>> 16);
+	}
+}
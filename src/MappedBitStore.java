@@ -0,0 +1,101 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bit storage in a memory-mapped file. A filter built in a mapped file can be
+ * reopened later without adding the data again.
+ *
+ * File layout (little endian): magic (int), header length (int), number of
+ * bits (long), parameters of the filter (header length - 16 bytes), words.
+ *
+ * @author Yan Deng
+ *
+ */
+public class MappedBitStore extends BufferBitStore {
+	private static final int MAGIC = 0x424c4d46; // "BLMF"
+	private static final int HEADER = 16; // magic, header length, number of bits
+
+	private RandomAccessFile file;
+	private MappedByteBuffer params;
+
+	private MappedBitStore(RandomAccessFile file, long numBits, int headerLength) throws IOException {
+		super(numBits);
+		this.file = file;
+		FileChannel channel = file.getChannel();
+		params = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerLength);
+		params.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < chunks.length; i++) {
+			long position = headerLength + ((long) i << (CHUNK_SHIFT + 3));
+			chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, chunkWords(i) << 3)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Create a new mapped file with given number of bits, all cleared.
+	 *
+	 * @param fileName
+	 * @param numBits
+	 * @param paramBytes
+	 *            the number of bytes reserved for the parameters of the filter
+	 * @return the bit storage
+	 * @throws IOException
+	 */
+	public static MappedBitStore create(File fileName, long numBits, int paramBytes) throws IOException {
+		int headerLength = (HEADER + paramBytes + 7) & ~7;
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		file.setLength(0);
+		file.setLength(headerLength + (((numBits + 63) >>> 6) << 3));
+		MappedBitStore store = new MappedBitStore(file, numBits, headerLength);
+		store.params.putInt(0, MAGIC);
+		store.params.putInt(4, headerLength);
+		store.params.putLong(8, numBits);
+		return store;
+	}
+
+	/**
+	 * Reopen a mapped file created by create().
+	 *
+	 * @param fileName
+	 * @return the bit storage
+	 * @throws IOException
+	 */
+	public static MappedBitStore open(File fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		file.getChannel().read(header, 0);
+		if (header.getInt(0) != MAGIC) {
+			file.close();
+			throw new IOException(fileName + " is not a bloom filter file.");
+		}
+		return new MappedBitStore(file, header.getLong(8), header.getInt(4));
+	}
+
+	/**
+	 * The parameters area of the header, the filter stores its own parameters
+	 * (k, data size...) here.
+	 *
+	 * @return a view of the parameters, starting at 0
+	 */
+	public ByteBuffer params() {
+		params.position(HEADER);
+		return params.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Write the changes to the file and unmap it.
+	 */
+	public void close() throws IOException {
+		params.force();
+		for (ByteBuffer chunk : chunks) {
+			((MappedByteBuffer) chunk).force();
+		}
+		chunks = null;
+		file.close();
+	}
+}
@@ -0,0 +1,32 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bit storage in direct ByteBuffers, outside of the java heap. The filter
+ * size is limited by the memory of the machine instead of -Xmx.
+ *
+ * @author Yan Deng
+ *
+ */
+public class OffHeapBitStore extends BufferBitStore {
+
+	/**
+	 * Allocate an off heap bit storage with given number of bits, all
+	 * cleared.
+	 *
+	 * @param numBits
+	 */
+	public OffHeapBitStore(long numBits) {
+		super(numBits);
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = ByteBuffer.allocateDirect((int) (chunkWords(i) << 3)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Release the buffers, the memory is freed by the garbage collector.
+	 */
+	public void close() {
+		chunks = null;
+	}
+}
@@ -0,0 +1,318 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fast reader of a 2-ary relation file, one record per line: key, whitespace,
+ * value. The file is read in large blocks into a byte buffer, and the key and
+ * value of the current line are handed out as slices of that buffer (offset,
+ * length) or as CharSequence views, without any regex and without allocating
+ * per line (only a view of a non-ASCII key or value is decoded). Empty lines
+ * are skipped.
+ *
+ * A reader can also read only the lines starting in a byte range of the file,
+ * so that several threads can read the same file.
+ *
+ * @author Yan Deng
+ *
+ */
+public class RelationReader implements Closeable {
+	private static final int BUFFER = 1 << 20; // bytes read per block
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private byte[] buf = new byte[BUFFER];
+	private long bufferStart; // position in the file of buf[0]
+	private int limit = 0; // number of valid bytes in buf
+	private int pos = 0; // next byte to scan
+	private boolean eof = false;
+	private long end; // lines starting at or after end are not read
+
+	private int lineOffset, lineLength;
+	private int keyOffset, keyLength;
+	private int valueOffset, valueLength;
+	private final Slice key = new Slice(true);
+	private final Slice value = new Slice(false);
+
+	/**
+	 * Open a reader on a whole relation file.
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public RelationReader(File fileName) throws IOException {
+		this(fileName, 0, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Open a reader on the lines starting in the byte range [start, end) of a
+	 * relation file. A line which crosses start belongs to the previous range.
+	 *
+	 * @param fileName
+	 * @param start
+	 *            first byte of the range
+	 * @param end
+	 *            end of the range (exclusive)
+	 * @throws IOException
+	 */
+	public RelationReader(File fileName, long start, long end) throws IOException {
+		this.file = new RandomAccessFile(fileName, "r");
+		this.channel = file.getChannel();
+		this.end = end;
+		if (start > 0) {
+			// skip the end of the line started in the previous range
+			bufferStart = start - 1;
+			channel.position(bufferStart);
+			while (true) {
+				if (pos == limit && !fill())
+					break;
+				if (buf[pos++] == '\n')
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Move to the next non-empty line.
+	 *
+	 * @return false if there is no more line in the file (or in the range)
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (bufferStart + pos >= end)
+				return false;
+			int start = pos;
+			int i = pos;
+			while (true) {
+				if (i == limit) {
+					long before = bufferStart;
+					boolean more = fill();
+					int shift = (int) (bufferStart - before); // fill() moved the line to buf[0]
+					start -= shift;
+					i -= shift;
+					if (!more)
+						break;
+				}
+				if (buf[i] == '\n')
+					break;
+				i++;
+			}
+			if (i == start && i == limit)
+				return false; // end of file
+			pos = i < limit ? i + 1 : i;
+			if (split(start, i))
+				return true;
+		}
+	}
+
+	/**
+	 * Find the key and the value in buf[start, stop).
+	 *
+	 * @return false if the line is empty
+	 */
+	private boolean split(int start, int stop) {
+		if (stop > start && buf[stop - 1] == '\r')
+			stop--;
+		lineOffset = start;
+		lineLength = stop - start;
+		int i = start;
+		while (i < stop && isSpace(buf[i]))
+			i++;
+		if (i == stop)
+			return false;
+		keyOffset = i;
+		while (i < stop && !isSpace(buf[i]))
+			i++;
+		keyLength = i - keyOffset;
+		while (i < stop && isSpace(buf[i]))
+			i++;
+		valueOffset = i;
+		while (i < stop && !isSpace(buf[i]))
+			i++;
+		valueLength = i - valueOffset;
+		key.reset();
+		value.reset();
+		return true;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+	}
+
+	/**
+	 * Read the next block of the file. The bytes from pos are kept, moved to
+	 * the beginning of buf (which grows if a line is longer than buf).
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean fill() throws IOException {
+		if (eof)
+			return false;
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			bufferStart += pos;
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length) {
+			byte[] larger = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, larger, 0, limit);
+			buf = larger;
+		}
+		int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+		if (n <= 0) {
+			eof = true;
+			return false;
+		}
+		limit += n;
+		return true;
+	}
+
+	/**
+	 * The buffer holding the current line, valid until the next call of
+	 * next().
+	 *
+	 * @return the buffer
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return the position in the file of the line after the current one.
+	 */
+	public long position() {
+		return bufferStart + pos;
+	}
+
+	public int lineOffset() {
+		return lineOffset;
+	}
+
+	public int lineLength() {
+		return lineLength;
+	}
+
+	public int keyOffset() {
+		return keyOffset;
+	}
+
+	public int keyLength() {
+		return keyLength;
+	}
+
+	public int valueOffset() {
+		return valueOffset;
+	}
+
+	public int valueLength() {
+		return valueLength;
+	}
+
+	/**
+	 * The key of the current line as a view of the buffer, with the same
+	 * characters as keyString(). The same object is returned for every line.
+	 *
+	 * @return the key
+	 */
+	public CharSequence key() {
+		return key;
+	}
+
+	/**
+	 * The value of the current line as a view of the buffer, with the same
+	 * characters as valueString().
+	 *
+	 * @return the value
+	 */
+	public CharSequence value() {
+		return value;
+	}
+
+	/**
+	 * @return a new String of the key (UTF-8).
+	 */
+	public String keyString() {
+		return new String(buf, keyOffset, keyLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return a new String of the value (UTF-8).
+	 */
+	public String valueString() {
+		return new String(buf, valueOffset, valueLength, StandardCharsets.UTF_8);
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * A view of the key or the value of the current line, with the same
+	 * characters as keyString() and valueString(). An ASCII slice is read
+	 * from the buffer, one byte per character; any other slice is decoded
+	 * from UTF-8 once per line.
+	 */
+	private class Slice implements CharSequence {
+		private final boolean isKey;
+		private boolean checked; // decoded is up to date for the current line
+		private String decoded; // null if the slice is ASCII
+
+		public Slice(boolean isKey) {
+			this.isKey = isKey;
+		}
+
+		/**
+		 * Forget the line before, called when a new line is split.
+		 */
+		void reset() {
+			checked = false;
+			decoded = null;
+		}
+
+		/**
+		 * @return the decoded slice, or null if it is ASCII
+		 */
+		private String decoded() {
+			if (!checked) {
+				checked = true;
+				int offset = isKey ? keyOffset : valueOffset;
+				int length = isKey ? keyLength : valueLength;
+				if (!FnvHash.isAscii(buf, offset, length))
+					decoded = new String(buf, offset, length, StandardCharsets.UTF_8);
+			}
+			return decoded;
+		}
+
+		public int length() {
+			String s = decoded();
+			if (s != null)
+				return s.length();
+			return isKey ? keyLength : valueLength;
+		}
+
+		public char charAt(int index) {
+			String s = decoded();
+			if (s != null)
+				return s.charAt(index);
+			return (char) buf[(isKey ? keyOffset : valueOffset) + index];
+		}
+
+		public CharSequence subSequence(int start, int stop) {
+			return toString().substring(start, stop);
+		}
+
+		@Override
+		public String toString() {
+			String s = decoded();
+			if (s != null)
+				return s;
+			return isKey ? keyString() : valueString();
+		}
+	}
+}
@@ -0,0 +1,267 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sort-merge join of R1 and R3. Both relations are sorted by key with an
+ * external sort, then read side by side in key order. A relation which is
+ * already sorted is used as it is.
+ *
+ * The external sort reads as many rows as fit in the memory budget, sorts them
+ * and writes them to a run file; then the runs are merged, at most
+ * MERGE_FANIN at a time, with a heap holding the current row of each run. The
+ * order is the one of BloomJoin.Pair (String order of the keys).
+ *
+ * The output has the columns R1 e1, R1 e2, R3 e2.
+ *
+ * @author Yan Deng
+ *
+ */
+public class SortMergeJoin {
+	private static final int MERGE_FANIN = 64; // runs merged at a time
+	private static final int PAIR_BYTES = 96; // heap used by a Pair, besides its characters
+	private static final byte[] SEPARATOR = "   ".getBytes(StandardCharsets.US_ASCII);
+
+	private final long memoryBudget; // bytes for the rows of a run
+	private final File spillDirectory; // null: the default temp directory
+	private long rows = 0; // rows written
+	private int runs = 0; // run files written
+
+	/**
+	 * @param memoryBudget
+	 *            the maximum size in bytes of the rows sorted in memory
+	 * @param spillDirectory
+	 *            the directory of the run files, null for the default temp
+	 *            directory
+	 */
+	public SortMergeJoin(long memoryBudget, File spillDirectory) {
+		if (memoryBudget <= 0) {
+			throw new IllegalArgumentException("The memory budget should be positive.");
+		}
+		this.memoryBudget = memoryBudget;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Join R1 and R3 and write the result.
+	 *
+	 * @param r1
+	 *            relation 1
+	 * @param r3
+	 *            relation 3, received from server 2
+	 * @param out
+	 *            destination of the joined rows
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	public long join(File r1, File r3, OutputStream out) throws IOException {
+		File sorted1 = sort(r1);
+		File sorted3 = sort(r3);
+		try {
+			merge(sorted1, sorted3, out);
+		} finally {
+			if (sorted1 != r1)
+				sorted1.delete();
+			if (sorted3 != r3)
+				sorted3.delete();
+		}
+		System.out.println("Sorted the relations with " + runs + " run files.");
+		return rows;
+	}
+
+	/**
+	 * Merge two sorted relations: the R3 rows of a key are kept in memory and
+	 * joined with each R1 row of that key.
+	 */
+	private void merge(File sorted1, File sorted3, OutputStream out) throws IOException {
+		Run left = new Run(sorted1);
+		Run right = new Run(sorted3);
+		List<String> group = new ArrayList<String>();
+		while (left.pair != null && right.pair != null) {
+			int c = left.pair.compareTo(right.pair);
+			if (c < 0) {
+				left.advance();
+			} else if (c > 0) {
+				right.advance();
+			} else {
+				String key = right.pair.key;
+				group.clear();
+				while (right.pair != null && right.pair.key.equals(key)) {
+					group.add(right.pair.value);
+					right.advance();
+				}
+				byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+				while (left.pair != null && left.pair.key.equals(key)) {
+					byte[] value1 = left.pair.value.getBytes(StandardCharsets.UTF_8);
+					for (String value3 : group) {
+						out.write(keyBytes);
+						out.write(SEPARATOR);
+						out.write(value1);
+						out.write(SEPARATOR);
+						out.write(value3.getBytes(StandardCharsets.UTF_8));
+						out.write('\n');
+						rows++;
+					}
+					left.advance();
+				}
+			}
+		}
+		left.close();
+		right.close();
+	}
+
+	/**
+	 * Sort a relation by key.
+	 *
+	 * @param relation
+	 * @return the relation itself if it is already sorted, otherwise a new
+	 *         temp file which the caller deletes
+	 * @throws IOException
+	 */
+	File sort(File relation) throws IOException {
+		if (isSorted(relation))
+			return relation;
+		List<File> files = generateRuns(relation);
+		while (files.size() > 1) {
+			List<File> merged = new ArrayList<File>();
+			for (int i = 0; i < files.size(); i += MERGE_FANIN) {
+				List<File> group = files.subList(i, Math.min(files.size(), i + MERGE_FANIN));
+				merged.add(mergeRuns(group));
+			}
+			files = merged;
+		}
+		return files.get(0);
+	}
+
+	/**
+	 * @return true if the keys of the relation are in order.
+	 */
+	static boolean isSorted(File relation) throws IOException {
+		RelationReader reader = new RelationReader(relation);
+		String previous = null;
+		try {
+			while (reader.next()) {
+				String key = reader.keyString();
+				if (previous != null && previous.compareTo(key) > 0)
+					return false;
+				previous = key;
+			}
+			return true;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Cut a relation into sorted runs which fit in the memory budget.
+	 */
+	private List<File> generateRuns(File relation) throws IOException {
+		List<File> files = new ArrayList<File>();
+		List<BloomJoin.Pair> pairs = new ArrayList<BloomJoin.Pair>();
+		long bytes = 0;
+		RelationReader reader = new RelationReader(relation);
+		while (reader.next()) {
+			BloomJoin.Pair pair = new BloomJoin.Pair(reader.keyString(), reader.valueString());
+			pairs.add(pair);
+			bytes += PAIR_BYTES + 2L * (pair.key.length() + pair.value.length());
+			if (bytes >= memoryBudget) {
+				files.add(writeRun(pairs));
+				pairs.clear();
+				bytes = 0;
+			}
+		}
+		reader.close();
+		if (!pairs.isEmpty() || files.isEmpty())
+			files.add(writeRun(pairs));
+		return files;
+	}
+
+	private File writeRun(List<BloomJoin.Pair> pairs) throws IOException {
+		Collections.sort(pairs);
+		File run = newRunFile();
+		OutputStream writer = new BufferedOutputStream(new FileOutputStream(run), 1 << 16);
+		for (BloomJoin.Pair pair : pairs) {
+			write(writer, pair);
+		}
+		writer.close();
+		return run;
+	}
+
+	/**
+	 * Merge sorted runs into one, with a heap of the current row of each run.
+	 * The merged runs are deleted.
+	 */
+	private File mergeRuns(List<File> files) throws IOException {
+		if (files.size() == 1)
+			return files.get(0);
+		PriorityQueue<Run> heap = new PriorityQueue<Run>(files.size());
+		for (File file : files) {
+			Run run = new Run(file);
+			if (run.pair != null)
+				heap.add(run);
+			else
+				run.close();
+		}
+		File merged = newRunFile();
+		OutputStream writer = new BufferedOutputStream(new FileOutputStream(merged), 1 << 16);
+		while (!heap.isEmpty()) {
+			Run run = heap.poll();
+			write(writer, run.pair);
+			run.advance();
+			if (run.pair != null)
+				heap.add(run);
+			else
+				run.close();
+		}
+		writer.close();
+		for (File file : files) {
+			file.delete();
+		}
+		return merged;
+	}
+
+	private File newRunFile() throws IOException {
+		runs++;
+		return File.createTempFile("run-", ".txt", spillDirectory);
+	}
+
+	private static void write(OutputStream writer, BloomJoin.Pair pair) throws IOException {
+		writer.write(pair.key.getBytes(StandardCharsets.UTF_8));
+		writer.write(' ');
+		writer.write(pair.value.getBytes(StandardCharsets.UTF_8));
+		writer.write('\n');
+	}
+
+	/**
+	 * A sorted relation read row by row; pair is the current row, null at the
+	 * end.
+	 */
+	private static class Run implements Comparable<Run> {
+		private final RelationReader reader;
+		BloomJoin.Pair pair;
+
+		Run(File file) throws IOException {
+			reader = new RelationReader(file);
+			advance();
+		}
+
+		void advance() throws IOException {
+			pair = reader.next() ? new BloomJoin.Pair(reader.keyString(), reader.valueString()) : null;
+		}
+
+		void close() throws IOException {
+			reader.close();
+		}
+
+		public int compareTo(Run target) {
+			return pair.compareTo(target.pair);
+		}
+	}
+}